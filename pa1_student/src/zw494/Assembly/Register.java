@@ -4,7 +4,6 @@ import java.util.Arrays;
 import java.util.List;
 
 import zw494.Optimization.IntfGraph;
-import zw494.Optimization.IntfGraphTest;
 import zw494.Optimization.LiveVarsAnal;
 
 public class Register extends Arg implements Comparable<Register> {
@@ -27,11 +26,20 @@ public class Register extends Arg implements Comparable<Register> {
     private regNames name; // the color of the register
     private String argName; // the name of the register
 
+    // the concrete register this register stands for: its color, or the calling convention register of _ARGn and
+    // _RETn. null for the other abstract registers. Registers are equal if they stand for the same concrete
+    // register, or are abstract with the same name.
+    private regNames resolved;
+    private int hash; // the hash of toString(), computed once
+
     public int degree = 0; // the degree of the register
 
     // characterize spilling priority
     public int use_num = 0;
 
+    // the cost of spilling this register: its uses and defs, weighted by 10^(loop depth)
+    public double spill_cost = 0;
+
     public enum Type {
         precolored, initial, simplify, freeze, spilling, spilled, coalesced, colored, selected
     }
@@ -49,6 +57,7 @@ public class Register extends Arg implements Comparable<Register> {
         this.name = name;
         this.argName = null;
         this.type = Type.precolored;
+        computeKey();
     }
 
     /**
@@ -60,6 +69,27 @@ public class Register extends Arg implements Comparable<Register> {
         this.argName = argName;
         this.name = null;
         this.type = null;
+        computeKey();
+    }
+
+    // compute the identity of this register after its name changed.
+    private void computeKey() {
+        resolved = name != null ? name : resolve(argName);
+        String key = toString();
+        hash = key == null ? 0 : key.hashCode();
+    }
+
+    // the calling convention register of the _ARGn or _RETn register argName, or null.
+    private regNames resolve(String argName) {
+        if (argName == null || argName.length() <= 4 || !Character.isDigit(argName.charAt(4)))
+            return null;
+        int q = argName.charAt(4) - '0';
+        if (argName.startsWith("_ARG") && q < 6)
+            return const_regs[q];
+        else if (argName.startsWith("_RET") && q < 2)
+            return func_ret_regs[q];
+        // this would not happen after register allocation
+        return null;
     }
 
     public String getArgName() {
@@ -70,10 +100,19 @@ public class Register extends Arg implements Comparable<Register> {
         return name;
     }
 
+    /**
+     * The concrete register that this register stands for: its color, or the calling convention register of an
+     * _ARGn or _RETn register. null for other abstract registers.
+     */
+    public regNames getResolvedName() {
+        return resolved;
+    }
+
     void setRegName(regNames newRegNames) {
         this.name = newRegNames;
         this.argName = null;
         this.type = Type.precolored;
+        computeKey();
     }
 
     /**
@@ -87,6 +126,7 @@ public class Register extends Arg implements Comparable<Register> {
         neww.name = this.name;
         neww.argName = this.argName;
         neww.type = this.type;
+        neww.computeKey();
         return neww;
     }
 
@@ -98,40 +138,16 @@ public class Register extends Arg implements Comparable<Register> {
         // print the registers as is
         // for abstract registers, print their name directly
 
+        // the colors of abstract registers are printed by their AllocationContext, or by rewriting the
+        // instructions with it
+
         if (this.name != null)
             return "%" + this.name.toString();
 
-        else if (IntfGraphTest.curGlobalMap != null) {
-            if (IntfGraphTest.curGlobalMap.get(this.argName) != null)
-                return "%" + IntfGraphTest.curGlobalMap.get(this.argName).toString();
-            // else
-            // System.out.println("cannot get" + this.argName + "register from map" +
-            // IntfGraphTest.curGlobalMap);
-        }
-
         // special case for _ARG and _RET
-        else if (this.argName.length() > 4) {
-            if (this.argName.substring(0, 4).equals("_ARG")) {
-                String w = this.argName.substring(4, 5);
-                int q = Integer.parseInt(w);
-                if (q < 6) {
-                    return "%" + const_regs[q];
-                } else {
-                    // this would not happen after register allocation
-                }
-            } else if (this.argName.substring(0, 4).equals("_RET")) {
-                String w = this.argName.substring(4, 5);
-                int q = Integer.parseInt(w);
-                if (q < 2) {
-                    return "%" + func_ret_regs[q];
-                } else {
-                    // this would not happen after register allocation
-                }
-            }
-        }
-
-        // System.out.println("failed to get any global map" +
-        // IntfGraphTest.curGlobalMap);
+        else if (this.resolved != null)
+            return "%" + this.resolved.toString();
+
         // for concrete registers, print their real name
         return this.argName;
 
@@ -148,16 +164,22 @@ public class Register extends Arg implements Comparable<Register> {
         // return false;
         // else
         // return this.argName.equals(r.argName);
-        return this.toString().equals(o.toString());
+        Register r = (Register) o;
+        if (this.resolved != null || r.resolved != null)
+            return this.resolved == r.resolved;
+        return this.argName == null ? r.argName == null : this.argName.equals(r.argName);
     }
 
     public int hashCode() {
-        return this.toString().hashCode();
+        return hash;
     }
 
-    // A coarse estimation of register priority
+    // A coarse estimation of register priority: the spill cost per neighbour. Registers without neighbours are
+    // never worth spilling.
     public double priority() {
-        return use_num * 1.0 / degree;
+        if (degree == 0)
+            return Double.POSITIVE_INFINITY;
+        return spill_cost / degree;
     }
 
     @Override
@@ -0,0 +1,210 @@
+package zw494.Optimization;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import zw494.Assembly.Arg;
+import zw494.Assembly.BinOp;
+import zw494.Assembly.Instr;
+import zw494.Assembly.Mem;
+import zw494.Assembly.Register;
+import zw494.Assembly.UnOp;
+
+/**
+ * The policy that picks the register allocator of each function from its size and how often it runs. Functions
+ * within the limits get iterated coalescing (RegisterAlloc); functions beyond them, and all functions once the time
+ * budget of the compilation is spent, get linear scan (LinearScanAlloc).
+ *
+ * How often a function runs is given by the caller with setFrequency, for example from a profile or from the
+ * number of call sites weighted by their loop depth. Hot functions get larger limits and keep coloring after the
+ * budget is spent; cold functions, like initializers that run once, get smaller limits. Functions without a
+ * frequency are neither. One policy is shared by all functions of a compilation, and may be used from several
+ * threads.
+ */
+public class AllocPolicy {
+
+    public enum Tier {
+        coloring, linearScan
+    }
+
+    /**
+     * The choice for one function, and the measurements it was based on.
+     */
+    public static class Decision {
+
+        public final String function;
+        public final Tier tier;
+        public final String reason;
+
+        public final double frequency; // how often the function runs, or NaN if not given
+
+        public final int instrs; // the number of instructions
+        public final int temps; // the number of abstract registers
+        public final int moves; // the number of register to register moves
+        public final double pressure; // the estimated number of temps live at an instruction
+        public final long edges; // the estimated number of edges of the interference graph
+
+        Decision(String function, Tier tier, String reason, double frequency, int instrs, int temps, int moves,
+                double pressure, long edges) {
+            this.function = function;
+            this.tier = tier;
+            this.reason = reason;
+            this.frequency = frequency;
+            this.instrs = instrs;
+            this.temps = temps;
+            this.moves = moves;
+            this.pressure = pressure;
+            this.edges = edges;
+        }
+
+        @Override
+        public String toString() {
+            return function + ": " + tier + " (" + reason + "; instrs=" + instrs + " temps=" + temps + " moves="
+                    + moves + " pressure=" + String.format("%.1f", pressure) + " edges~" + edges
+                    + (Double.isNaN(frequency) ? "" : " frequency=" + frequency) + ")";
+        }
+    }
+
+    // functions beyond any of these limits get linear scan
+    public int maxInstrs = 4000;
+    public int maxTemps = 1500;
+    public long maxEdges = 200000;
+
+    // functions with at least this share of moves keep coloring up to twice the limits, since coalescing is what
+    // removes their moves
+    public double moveRatio = 0.25;
+
+    // functions that run at least hotFrequency times get hotScale times the limits, and functions that run at most
+    // coldFrequency times get the limits divided by coldScale
+    public double hotFrequency = 1000;
+    public double hotScale = 4;
+    public double coldFrequency = 1;
+    public double coldScale = 4;
+
+    // the time all functions of the compilation may spend in register allocation, in nanoseconds. Once it is
+    // spent, the remaining functions get linear scan.
+    public long budgetNanos = 30_000_000_000L;
+
+    private final AtomicLong spent = new AtomicLong();
+
+    // how often each function runs, by name
+    private final Map<String, Double> frequencies = new ConcurrentHashMap<>();
+
+    private final List<Decision> decisions = Collections.synchronizedList(new ArrayList<>());
+
+    /**
+     * Measure the function and choose its allocator. The decision is recorded.
+     */
+    public Decision choose(String function, List<Instr> instrs) {
+
+        // the first and last instruction that mentions each abstract register
+        Map<String, int[]> spans = new HashMap<>();
+        int moves = 0;
+
+        for (int k = 0; k < instrs.size(); ++k) {
+            Instr i = instrs.get(k);
+            if (IntfGraphTest.isMoveInstr(i))
+                moves++;
+            if (i instanceof BinOp) {
+                span(spans, ((BinOp) i).arg1, k);
+                span(spans, ((BinOp) i).arg2, k);
+            } else if (i instanceof UnOp) {
+                span(spans, ((UnOp) i).arg1, k);
+            }
+        }
+
+        long covered = 0;
+        for (int[] s : spans.values())
+            covered += s[1] - s[0] + 1;
+
+        int n = instrs.size();
+        int temps = spans.size();
+        double pressure = n == 0 ? 0 : (double) covered / n;
+        // every temp interferes with about the temps live with it
+        long edges = (long) (temps * pressure / 2);
+
+        boolean moveHeavy = n > 0 && moves >= moveRatio * n;
+        double scale = moveHeavy ? 2 : 1;
+
+        double frequency = function == null ? Double.NaN : frequencies.getOrDefault(function, Double.NaN);
+        boolean hot = frequency >= hotFrequency;
+        boolean cold = frequency <= coldFrequency;
+        if (hot)
+            scale *= hotScale;
+        else if (cold)
+            scale /= coldScale;
+
+        Tier tier = Tier.linearScan;
+        String reason;
+        if (spent.get() >= budgetNanos && !hot)
+            reason = "time budget spent";
+        else if (n > scale * maxInstrs)
+            reason = "more than " + (long) (scale * maxInstrs) + " instructions";
+        else if (temps > scale * maxTemps)
+            reason = "more than " + (long) (scale * maxTemps) + " temps";
+        else if (edges > scale * maxEdges)
+            reason = "more than " + (long) (scale * maxEdges) + " estimated edges";
+        else {
+            tier = Tier.coloring;
+            reason = "within limits";
+            if (moveHeavy)
+                reason += ", move heavy";
+        }
+        if (hot)
+            reason += ", hot";
+        else if (cold)
+            reason += ", cold";
+
+        Decision d = new Decision(function, tier, reason, frequency, n, temps, moves, pressure, edges);
+        decisions.add(d);
+        return d;
+    }
+
+    private static void span(Map<String, int[]> spans, Arg a, int k) {
+        if (a instanceof Register) {
+            span(spans, (Register) a, k);
+        } else if (a instanceof Mem) {
+            span(spans, ((Mem) a).r1, k);
+            if (((Mem) a).r2 != null)
+                span(spans, ((Mem) a).r2, k);
+        }
+    }
+
+    private static void span(Map<String, int[]> spans, Register r, int k) {
+        if (r.getResolvedName() != null)
+            return;
+        int[] s = spans.get(r.getArgName());
+        if (s == null)
+            spans.put(r.getArgName(), new int[] { k, k });
+        else
+            s[1] = k;
+    }
+
+    // set how often the function runs, in any unit that hotFrequency and coldFrequency use.
+    public void setFrequency(String function, double frequency) {
+        frequencies.put(function, frequency);
+    }
+
+    // record that an allocation took nanos nanoseconds of the budget.
+    public void charge(long nanos) {
+        spent.addAndGet(nanos);
+    }
+
+    // the time spent in register allocation so far, in nanoseconds.
+    public long spent() {
+        return spent.get();
+    }
+
+    // the decisions made so far, in the order they were made.
+    public List<Decision> decisions() {
+        synchronized (decisions) {
+            return new ArrayList<>(decisions);
+        }
+    }
+
+}
@@ -0,0 +1,90 @@
+package zw494.Optimization;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import zw494.Assembly.Instr;
+
+/**
+ * The result of allocating the registers of one function: the rewritten instructions, and what every round of
+ * coloring did.
+ */
+public class AllocResult {
+
+    /**
+     * One round of coloring, and the spill code that followed it.
+     */
+    public static class Round {
+
+        public final int spills; // the number of nodes spilled in this round
+        public final int nodes; // the number of nodes of the interference graph, not counting precolored ones
+        public final int edges; // the number of edges of the interference graph
+        public final long nanos; // the time spent on liveness, the graph, coloring and spill code
+
+        Round(int spills, int nodes, int edges, long nanos) {
+            this.spills = spills;
+            this.nodes = nodes;
+            this.edges = edges;
+            this.nanos = nanos;
+        }
+
+        @Override
+        public String toString() {
+            return "spills=" + spills + " nodes=" + nodes + " edges=" + edges + " time=" + nanos / 1000 + "us";
+        }
+    }
+
+    public final List<Instr> instrs; // the instructions, with all registers colored
+
+    public final List<Round> rounds = new ArrayList<>();
+
+    public AllocationContext context; // the colors of the abstract registers
+
+    public int slots; // the number of stack slots used for spills
+
+    public int splitCopies; // the number of copies inserted by LiveRangeSplit
+
+    public int selfMoves; // the number of moves deleted because both ends got the same color
+
+    public int peepholeRemoved; // the number of instructions removed by the Peephole pass
+
+    public AllocPolicy.Decision decision; // why this allocator was chosen, or null if there was no choice
+
+    // whether the round limit was hit and every register was spilled
+    public boolean spilledAll = false;
+
+    // whether linear scan hit its round limit and graph coloring finished the allocation
+    public boolean linearScanFallback = false;
+
+    AllocResult(List<Instr> instrs) {
+        this.instrs = instrs;
+    }
+
+    // the total number of spilled nodes over all rounds.
+    public int spills() {
+        int n = 0;
+        for (Round r : rounds)
+            n += r.spills;
+        return n;
+    }
+
+    // the total time over all rounds, in nanoseconds.
+    public long nanos() {
+        long n = 0;
+        for (Round r : rounds)
+            n += r.nanos;
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        return (decision != null ? decision + ", " : "")
+                + rounds.size() + " rounds, "
+                + spills() + " spills" + (spilledAll ? " (spilled all)" : "") + ", "
+                + splitCopies + " split copies, "
+                + selfMoves + " self moves deleted, "
+                + peepholeRemoved + " removed by peephole: "
+                + rounds;
+    }
+
+}
@@ -0,0 +1,117 @@
+package zw494.Optimization;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import zw494.Assembly.Arg;
+import zw494.Assembly.BinOp;
+import zw494.Assembly.Instr;
+import zw494.Assembly.Mem;
+import zw494.Assembly.Register;
+import zw494.Assembly.UnOp;
+import zw494.Assembly.Register.regNames;
+
+/**
+ * The result of register allocation for one function: the color of every abstract register. It replaces the
+ * global map of colors that Register.toString() used to read, so that functions can be allocated and printed
+ * independently of each other.
+ */
+public class AllocationContext {
+
+    private final String function; // the name of the function, or null
+
+    private final Map<String, regNames> colorMap; // abstract register name -> its color
+
+    /**
+     * @param function the name of the function, or null if it is not known
+     * @param colorMap the colors of the abstract registers of the function
+     */
+    public AllocationContext(String function, Map<String, regNames> colorMap) {
+        this.function = function;
+        this.colorMap = new HashMap<>(colorMap);
+    }
+
+    public String function() {
+        return function;
+    }
+
+    // the colors of the abstract registers, by name.
+    public Map<String, regNames> colorMap() {
+        return Collections.unmodifiableMap(colorMap);
+    }
+
+    /**
+     * The concrete register that r is allocated to, or null if r is an abstract register without a color.
+     */
+    public regNames color(Register r) {
+        regNames name = RegisterTable.concreteName(r);
+        if (name != null)
+            return name;
+        return colorMap.get(r.getArgName());
+    }
+
+    /**
+     * Print the register r with its color in AT&T syntax. Registers without a color print their name.
+     */
+    public String format(Register r) {
+        regNames name = color(r);
+        return name != null ? "%" + name : r.getArgName();
+    }
+
+    /**
+     * Replace every abstract register in the operands of instrs with its concrete register, so that the
+     * instructions can be printed without this context.
+     */
+    public void rewrite(List<Instr> instrs) {
+        for (Instr i : instrs) {
+            if (i instanceof BinOp) {
+                BinOp j = (BinOp) i;
+                j.arg1 = rewrite(j.arg1);
+                j.arg2 = rewrite(j.arg2);
+            } else if (i instanceof UnOp) {
+                UnOp j = (UnOp) i;
+                j.arg1 = rewrite(j.arg1);
+            }
+        }
+    }
+
+    /**
+     * Delete the moves whose source and destination got the same color, after rewrite.
+     * @return the number of moves deleted
+     */
+    public static int removeSelfMoves(List<Instr> instrs) {
+        int size = instrs.size();
+        instrs.removeIf(i -> IntfGraphTest.isMoveInstr(i)
+                && ((Register) ((BinOp) i).arg1).getRegNames() != null
+                && ((Register) ((BinOp) i).arg1).getRegNames() == ((Register) ((BinOp) i).arg2).getRegNames());
+        return size - instrs.size();
+    }
+
+    // the operand a with its registers replaced by their colors.
+    private Arg rewrite(Arg a) {
+        if (a instanceof Register) {
+            return rewrite((Register) a);
+        } else if (a instanceof Mem) {
+            Mem m = (Mem) a;
+            m.r1 = rewrite(m.r1);
+            if (m.r2 != null)
+                m.r2 = rewrite(m.r2);
+        }
+        return a;
+    }
+
+    private Register rewrite(Register r) {
+        if (r.getRegNames() != null)
+            return r;
+        regNames name = color(r);
+        return name != null ? new Register(name) : r;
+    }
+
+    @Override
+    public String toString() {
+        return (function != null ? function + ": " : "") + colorMap;
+    }
+
+}
@@ -0,0 +1,242 @@
+package zw494.Optimization;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import zw494.Assembly.Instr;
+import zw494.CFG.ControlFlowGraphMaster;
+
+/**
+ * A basic block of assembly instructions: a maximal straight-line run of instructions of the instruction level
+ * control flow graph. Control only enters at the first instruction and only leaves at the last one.
+ */
+public class BasicBlock {
+
+    int index; // position of this block in the list of blocks of the function
+
+    List<Instr> instrs; // the instructions of this block, in program order
+    List<BasicBlock> succs;
+    List<BasicBlock> preds;
+
+    // the registers used before being defined in this block, and the registers defined in this block
+    LiveSet gen;
+    LiveSet kill;
+
+    int loopDepth; // the number of loops that contain this block
+
+    BasicBlock(int index) {
+        this.index = index;
+        this.instrs = new ArrayList<>();
+        this.succs = new ArrayList<>();
+        this.preds = new ArrayList<>();
+    }
+
+    /**
+     * Compute gen and kill of this block from the use and def sets of its instructions.
+     */
+    void summarize(LiveVarsAnal lva) {
+        gen = new LiveSet(lva.table.size());
+        kill = new LiveSet(lva.table.size());
+
+        for (int k = instrs.size() - 1; k >= 0; --k) {
+            Instr i = instrs.get(k);
+            for (int d : lva.defIds(i)) {
+                gen.remove(d);
+                kill.add(d);
+            }
+            for (int u : lva.useIds(i))
+                gen.add(u);
+        }
+    }
+
+    /**
+     * Split the instructions into basic blocks. A new block starts at an instruction unless its only predecessor
+     * is the previous instruction and it is the only successor of that instruction.
+     *
+     * @param cfg    the control flow graph of the instructions
+     * @param instrs the instructions in program order
+     * @return the blocks in program order; the first one is the entry
+     */
+    static List<BasicBlock> build(ControlFlowGraphMaster<Instr> cfg, List<Instr> instrs) {
+        List<BasicBlock> blocks = new ArrayList<>();
+        Map<Instr, BasicBlock> leaders = new IdentityHashMap<>();
+
+        BasicBlock cur = null;
+        Instr prev = null;
+
+        for (Instr i : instrs) {
+            if (cur == null || !fallsThrough(cfg, prev, i)) {
+                cur = new BasicBlock(blocks.size());
+                blocks.add(cur);
+                leaders.put(i, cur);
+            }
+            cur.instrs.add(i);
+            prev = i;
+        }
+
+        for (BasicBlock b : blocks) {
+            List<Instr> children = cfg.getChildren(b.instrs.get(b.instrs.size() - 1));
+            if (children == null)
+                continue;
+            for (Instr c : children) {
+                BasicBlock s = leaders.get(c);
+                if (s != null && !b.succs.contains(s)) {
+                    b.succs.add(s);
+                    s.preds.add(b);
+                }
+            }
+        }
+
+        return blocks;
+    }
+
+    /**
+     * Compute the loop depth of every block. The loops are the natural loops of the back edges, the edges to a
+     * block that dominates their source; loops with the same header count once. Blocks that cannot be reached
+     * from the entry get depth 0.
+     *
+     * @param blocks the blocks in program order; the first one is the entry
+     */
+    static void computeLoopDepths(List<BasicBlock> blocks) {
+        int n = blocks.size();
+        for (BasicBlock b : blocks)
+            b.loopDepth = 0;
+        if (n == 0)
+            return;
+
+        // reverse postorder from the entry
+        List<BasicBlock> rpo = new ArrayList<>(n);
+        boolean[] visited = new boolean[n];
+        postorder(blocks.get(0), visited, rpo);
+        Collections.reverse(rpo);
+
+        int[] rpoNum = new int[n];
+        for (int k = 0; k < rpo.size(); ++k)
+            rpoNum[rpo.get(k).index] = k;
+
+        // immediate dominators, by the iterative algorithm of Cooper, Harvey and Kennedy
+        int[] idom = new int[n];
+        Arrays.fill(idom, -1);
+        idom[blocks.get(0).index] = blocks.get(0).index;
+
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int k = 1; k < rpo.size(); ++k) {
+                BasicBlock b = rpo.get(k);
+                int newIdom = -1;
+                for (BasicBlock p : b.preds) {
+                    if (idom[p.index] < 0)
+                        continue;
+                    newIdom = newIdom < 0 ? p.index : intersect(idom, rpoNum, p.index, newIdom);
+                }
+                if (newIdom != idom[b.index]) {
+                    idom[b.index] = newIdom;
+                    changed = true;
+                }
+            }
+        }
+
+        // the bodies of the natural loops, merged by header
+        Map<BasicBlock, boolean[]> loops = new LinkedHashMap<>();
+        for (BasicBlock b : rpo) {
+            for (BasicBlock h : b.succs) {
+                if (!dominates(idom, h.index, b.index))
+                    continue;
+
+                boolean[] body = loops.computeIfAbsent(h, x -> new boolean[n]);
+                body[h.index] = true;
+
+                Deque<BasicBlock> work = new ArrayDeque<>();
+                if (!body[b.index]) {
+                    body[b.index] = true;
+                    work.push(b);
+                }
+                while (!work.isEmpty()) {
+                    for (BasicBlock p : work.pop().preds) {
+                        if (!body[p.index] && idom[p.index] >= 0) {
+                            body[p.index] = true;
+                            work.push(p);
+                        }
+                    }
+                }
+            }
+        }
+
+        for (boolean[] body : loops.values()) {
+            for (BasicBlock b : blocks) {
+                if (body[b.index])
+                    b.loopDepth++;
+            }
+        }
+    }
+
+    private static void postorder(BasicBlock entry, boolean[] visited, List<BasicBlock> order) {
+        // the dfs stack of blocks, and the index of the next successor to visit of each of them
+        Deque<BasicBlock> stack = new ArrayDeque<>();
+        Deque<Integer> next = new ArrayDeque<>();
+        visited[entry.index] = true;
+        stack.push(entry);
+        next.push(0);
+
+        while (!stack.isEmpty()) {
+            BasicBlock b = stack.peek();
+            int k = next.pop();
+            if (k < b.succs.size()) {
+                next.push(k + 1);
+                BasicBlock s = b.succs.get(k);
+                if (!visited[s.index]) {
+                    visited[s.index] = true;
+                    stack.push(s);
+                    next.push(0);
+                }
+            } else {
+                stack.pop();
+                order.add(b);
+            }
+        }
+    }
+
+    // the nearest common dominator of the blocks a and b.
+    private static int intersect(int[] idom, int[] rpoNum, int a, int b) {
+        while (a != b) {
+            while (rpoNum[a] > rpoNum[b])
+                a = idom[a];
+            while (rpoNum[b] > rpoNum[a])
+                b = idom[b];
+        }
+        return a;
+    }
+
+    // whether the block h dominates the block b.
+    private static boolean dominates(int[] idom, int h, int b) {
+        while (true) {
+            if (b == h)
+                return true;
+            if (idom[b] == b || idom[b] < 0)
+                return false;
+            b = idom[b];
+        }
+    }
+
+    // whether i belongs to the same block as prev, the instruction before it.
+    private static boolean fallsThrough(ControlFlowGraphMaster<Instr> cfg, Instr prev, Instr i) {
+        List<Instr> children = cfg.getChildren(prev);
+        List<Instr> parents = cfg.getParent(i);
+        return children != null && children.size() == 1 && children.get(0) == i
+                && parents != null && parents.size() == 1 && parents.get(0) == prev;
+    }
+
+    @Override
+    public String toString() {
+        return "B" + index;
+    }
+
+}
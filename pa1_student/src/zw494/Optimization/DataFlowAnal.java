@@ -1,9 +1,15 @@
 package zw494.Optimization;
 
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Queue;
+import java.util.function.ToIntFunction;
 
 import zw494.CFG.ControlFlowGraphMaster;
 
@@ -20,6 +26,10 @@ public abstract class DataFlowAnal<N, E> {
     // the worklist
     Queue<N> w;
 
+    // the number of nodes taken off the worklist, and how many of them changed their result.
+    int visits = 0;
+    int changes = 0;
+
     // meet operator
     public abstract E meet(List<E> t);
 
@@ -32,6 +42,91 @@ public abstract class DataFlowAnal<N, E> {
     // a condition to operate on the list of nodes.
     public abstract void cond(List<N> lst);
 
+    // the successors of the node n. Analyses that do not run on the nodes of cfg override this and parents.
+    public List<N> children(N n) {
+        return cfg.getChildren(n);
+    }
+
+    // the predecessors of the node n.
+    public List<N> parents(N n) {
+        return cfg.getParent(n);
+    }
+
+    /**
+     * The dense id of each node, from 0, that the worklist indexes its bitmap by. By default the position of the
+     * node in nodes, looked up in a map; analyses whose nodes carry their own index override this.
+     */
+    protected ToIntFunction<N> nodeIds(List<N> nodes) {
+        Map<N, Integer> ids = new HashMap<>();
+        for (N n : nodes)
+            ids.putIfAbsent(n, ids.size());
+        return n -> ids.computeIfAbsent(n, k -> ids.size());
+    }
+
+    /**
+     * Fill the worklist with all nodes, ordered so that a node is usually visited after the nodes its value flows
+     * from: reverse postorder for forward problems, and postorder (the reverse postorder of the reversed graph)
+     * for backward problems. The worklist keeps each node at most once.
+     *
+     * @param nodes    all nodes of the graph; the first one is the entry
+     * @param backward whether the analysis is a backward one
+     */
+    protected void seedWorklist(List<N> nodes, boolean backward) {
+        Worklist<N> worklist = new Worklist<>(nodes, nodeIds(nodes));
+
+        List<N> order = postorder(nodes, worklist);
+        if (!backward)
+            Collections.reverse(order);
+
+        worklist.addAll(order);
+        w = worklist;
+    }
+
+    /**
+     * The depth first postorder of the graph from the first node. Nodes not reachable from it follow in the
+     * order of the node list.
+     */
+    private List<N> postorder(List<N> nodes, Worklist<N> worklist) {
+        List<N> order = new ArrayList<>(nodes.size());
+        boolean[] visited = new boolean[worklist.indexSize()];
+
+        // the dfs stack of nodes, and the index of the next child to visit of each of them
+        Deque<N> stack = new ArrayDeque<>();
+        Deque<Integer> next = new ArrayDeque<>();
+
+        for (N root : nodes) {
+            if (visited[worklist.indexOf(root)])
+                continue;
+            visited[worklist.indexOf(root)] = true;
+            stack.push(root);
+            next.push(0);
+
+            while (!stack.isEmpty()) {
+                N node = stack.peek();
+                int k = next.pop();
+                List<N> children = children(node);
+
+                if (children != null && k < children.size()) {
+                    next.push(k + 1);
+                    N child = children.get(k);
+                    int c = worklist.indexOf(child);
+                    if (c >= visited.length)
+                        visited = Arrays.copyOf(visited, Math.max(c + 1, visited.length * 2));
+                    if (!visited[c]) {
+                        visited[c] = true;
+                        stack.push(child);
+                        next.push(0);
+                    }
+                } else {
+                    stack.pop();
+                    order.add(node);
+                }
+            }
+        }
+
+        return order;
+    }
+
     /**
      * The backward worklist algorithm.
      */
@@ -40,10 +135,11 @@ public abstract class DataFlowAnal<N, E> {
         while (!w.isEmpty()) {
 
             N node = w.poll();
+            visits++;
 
             List<E> ins = new ArrayList<E>();
 
-            List<N> nodes = cfg.getChildren(node);
+            List<N> nodes = children(node);
             if (nodes == null)
                 continue;
 
@@ -70,9 +166,10 @@ public abstract class DataFlowAnal<N, E> {
 
                 if (!hasSameElt(n_in, in.get(node))) {
 
+                    changes++;
                     in.put(node, n_in);
 
-                    List<N> lst = cfg.getParent(node);
+                    List<N> lst = parents(node);
 
                     if (lst != null)
                         w.addAll(lst);
@@ -94,10 +191,11 @@ public abstract class DataFlowAnal<N, E> {
         while(!w.isEmpty()){
 
             N node = w.poll();
+            visits++;
 
             List<E> ins = new ArrayList<E>();
                         
-            List<N> preds = cfg.getParent(node);  
+            List<N> preds = parents(node);  
             
             // System.out.println(node.toString().substring(0, node.toString().length() - 2));
             // System.out.println(preds.toString());
@@ -118,9 +216,10 @@ public abstract class DataFlowAnal<N, E> {
 
                 if (!hasSameElt(outN, out.get(node))) {
 
+                    changes++;
                     out.put(node, outN);
 
-                    List<N> lst = cfg.getChildren(node);
+                    List<N> lst = children(node);
 
                     cond(lst);
 
@@ -137,6 +236,14 @@ public abstract class DataFlowAnal<N, E> {
 
     }
 
+    // the number of nodes processed by the last run of the worklist algorithm.
+    public int iterations() {
+        return visits;
+    }
 
+    // the number of nodes whose result changed during the last run of the worklist algorithm.
+    public int updates() {
+        return changes;
+    }
 
 }
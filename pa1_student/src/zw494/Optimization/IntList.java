@@ -0,0 +1,61 @@
+package zw494.Optimization;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of ints, used for the adjacency lists of the interference graph.
+ */
+public class IntList {
+
+    private int[] elems;
+    private int size;
+
+    public IntList() {
+        elems = new int[4];
+    }
+
+    public IntList(IntList copy) {
+        elems = Arrays.copyOf(copy.elems, Math.max(copy.size, 4));
+        size = copy.size;
+    }
+
+    public void add(int x) {
+        if (size == elems.length)
+            elems = Arrays.copyOf(elems, size * 2);
+        elems[size++] = x;
+    }
+
+    /**
+     * Remove one occurrence of x, if any. The last element takes its place, so the order is not kept.
+     */
+    public void remove(int x) {
+        for (int k = 0; k < size; ++k) {
+            if (elems[k] == x) {
+                elems[k] = elems[--size];
+                return;
+            }
+        }
+    }
+
+    public int get(int k) {
+        return elems[k];
+    }
+
+    public void set(int k, int x) {
+        elems[k] = x;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(Arrays.copyOf(elems, size));
+    }
+
+}
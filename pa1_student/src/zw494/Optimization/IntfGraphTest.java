@@ -1,23 +1,23 @@
 package zw494.Optimization;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.PriorityQueue;
-import java.util.Queue;
 import java.util.Set;
-import java.util.Stack;
 
-import zw494.AST.Factory;
+import zw494.Assembly.Arg;
 import zw494.Assembly.BinOp;
 import zw494.Assembly.Instr;
 import zw494.Assembly.Mem;
 import zw494.Assembly.Register;
+import zw494.Assembly.UnOp;
+import zw494.Assembly.UnOp.UnOpType;
 import zw494.Assembly.BinOp.OpType;
 import zw494.Assembly.Register.Type;
 import zw494.Assembly.Register.regNames;
@@ -29,44 +29,61 @@ import zw494.Optimization.IntfMove.Category;
 public class IntfGraphTest {
 
     // graph data structure: stored as an adjacent list
-    Map<Register, Set<Register>> adjList;
-    HashSet<Pair<Register>> adjSet;
-    public static Map<String, Map<String, Register.regNames>> globalMapMap;
-    public static Map<String, Register.regNames> curGlobalMap;
-
-    // set the current mapping from register names to their color
-    public static void setCurGlobalMap(String funcName) {
-        curGlobalMap = globalMapMap.get(funcName);
-    }
-
+    IntList[] adjList; // indexed by register id; null for precolored registers and registers without neighbours
+    IntfMatrix adjSet;
     // the result of the graph coloring algorithm: color allocation!
     Map<String, Register.regNames> colorMap;
 
     // worklists of nodes
     Set<Register> precolored;
-    Set<Register> initial;
-    Map<Register, Register> registerSet;
-    Queue<Register> simplifyWorklist;
-    Queue<Register> freezeWorklist;
-    PriorityQueue<Register> spillWorklist;
-    Set<Register> spilledNodes;
-    Set<Register> coalescedNodes;
-    Set<Register> coloredNodes;
-    Stack<Register> selectStack;
-
-    // lists of moves
-    Set<IntfMove> coalescedMoves;
-    Set<IntfMove> constrainedMoves;
-    Set<IntfMove> frozenMoves;
-    Set<IntfMove> worklistMoves;
-    Set<IntfMove> activeMoves;
-
-    // a map from each node to a list of moves that it is associated with
-    Map<Register, Set<IntfMove>> moveList;
+    RegisterTable table; // canonical register objects and their ids
+
+    // the initial, simplify, freeze, spill, select, coalesced, colored and spilled lists of nodes. A node is in the
+    // list of its Register.type; the select list is used as the select stack.
+    NodeLists lists;
+
+    // the nodes of the spill list, ordered by their spill priority
+    SpillHeap spillHeap;
+
+    // all moves, indexed by IntfMove.id
+    List<IntfMove> moves;
+
+    // the coalesced, constrained, frozen, worklist and active lists of moves, over move ids. A move is in the list
+    // of its IntfMove.category.
+    NodeLists moveLists;
+
+    // the ids of the moves that each node is associated with, indexed by register id
+    IntList[] moveList;
+
+    // the adjacency lists, edges and degrees of the graph as built, before coloring changed them. A spill round
+    // starts from them instead of building the graph again.
+    private IntList[] builtAdjList;
+    private IntfMatrix builtAdjSet;
+    private int[] builtDegree;
+
+    private int builtEdges;
+
+    // the number of nodes that are not precolored, and the number of edges
+    int nodes;
+    int edges;
+
+    // the nodes that are live across a callq. A coalesced node passes this on to its alias.
+    LiveSet acrossCalls;
+    private LiveSet builtAcrossCalls;
 
     // K colour value
     final int K = 14;
 
+    // the order in which assignColors tries the colors. A node that is not live across a call prefers the caller
+    // saved registers, which cost nothing to use; a node that is live across a call prefers the callee saved
+    // registers, which the call does not clobber, and which are only worth saving for such nodes.
+    static final List<regNames> CALLER_SAVED_FIRST = Arrays.asList(regNames.rax, regNames.rcx, regNames.rdx,
+            regNames.rsi, regNames.rdi, regNames.r8, regNames.r9, regNames.r10, regNames.r11, regNames.rbx,
+            regNames.r12, regNames.r13, regNames.r14, regNames.r15);
+    static final List<regNames> CALLEE_SAVED_FIRST = Arrays.asList(regNames.rbx, regNames.r12, regNames.r13,
+            regNames.r14, regNames.r15, regNames.rax, regNames.rcx, regNames.rdx, regNames.rsi, regNames.rdi,
+            regNames.r8, regNames.r9, regNames.r10, regNames.r11);
+
     /**
      * Construct the interference graph.
      * 
@@ -75,142 +92,191 @@ public class IntfGraphTest {
      */
     public IntfGraphTest(LiveVarsAnal lva, List<Instr> instrs) {
 
-        adjList = new HashMap<>();
-        adjSet = new HashSet<>();
+        table = lva.table;
+
+        adjList = new IntList[table.size()];
+        adjSet = new IntfMatrix(table.size());
 
         colorMap = new HashMap<>();
 
-        registerSet = new HashMap<>();
         precolored = new HashSet<>();
-        initial = new HashSet<>();
-        simplifyWorklist = new LinkedList<>();
-        freezeWorklist = new LinkedList<>();
-        spillWorklist = new PriorityQueue<>();
+        lists = new NodeLists(table.size(), Type.values().length);
+        spillHeap = new SpillHeap(table.size());
 
-        spilledNodes = new HashSet<>();
-        coalescedNodes = new HashSet<>();
-        coloredNodes = new HashSet<>();
+        moves = new ArrayList<>();
+        moveLists = new NodeLists(0, Category.values().length);
 
-        selectStack = new Stack<>();
+        moveList = new IntList[table.size()];
 
-        coalescedMoves = new HashSet<>();
-        constrainedMoves = new HashSet<>();
-        frozenMoves = new HashSet<>();
-        worklistMoves = new HashSet<>();
-        activeMoves = new HashSet<>();
+        acrossCalls = new LiveSet(table.size());
 
-        moveList = new HashMap<>();
+        addNodes(lva, instrs);
 
-        Set<Register> s = new HashSet<>();
+    }
+
+    /**
+     * Add every register used or defined in instrs to the graph.
+     */
+    void addNodes(LiveVarsAnal lva, List<Instr> instrs) {
+
+        nodes = 0;
+
+        LiveSet s = new LiveSet(table.size());
 
         for (Instr i : instrs) {
 
-            s.addAll(lva.def(i));
-            // addAllSet(s, lva.def(i), "instr (lva def)");
-            if (lva.use(i) != null)
-                s.addAll(lva.use(i));
-            // addAllSet(s, lva.use(i), "instr (lva use)");
+            for (int d : lva.defIds(i))
+                s.add(d);
+            for (int u : lva.useIds(i))
+                s.add(u);
 
         }
-        for (Register j : s) {
-            addNode(j);
+        for (int j = s.nextSetBit(0); j >= 0; j = s.nextSetBit(j + 1)) {
+            addNode(table.get(j));
         }
 
     }
 
     /**
-     * Build the interferenece graph
+     * Build the interferenece graph. The liveness of each instruction is recovered by walking every block backward
+     * from its live out set.
      * 
      * @param lva    Result of the live variable analysis
      * @param instrs the list of instructions that we are processing
      */
     void build(LiveVarsAnal lva, List<Instr> instrs) {
 
-        for (Instr i : instrs) {
+        for (BasicBlock b : lva.blocks) {
 
-            Set<Register> live = new HashSet<>();
-            for (Register w : lva.out.get(i)) {
-                live.add(registerSet.get(w));
-            }
-            // live.addAll(lva.out.get(i));
-            // addAllSet(live, lva.out.get(i), "live (lva out)");
+            buildBlock(lva, b);
+
+        }
+
+        buildMoves(lva);
+
+        save();
+    }
+
+    /**
+     * Add the edges of the block b.
+     */
+    void buildBlock(LiveVarsAnal lva, BasicBlock b) {
+
+        LiveSet live = new LiveSet(lva.out.get(b));
+
+        for (int k = b.instrs.size() - 1; k >= 0; --k) {
+
+            buildInstr(lva, b.instrs.get(k), live);
+
+        }
+
+    }
+
+    /**
+     * Add the move instructions of all blocks to the worklist of moves.
+     */
+    void buildMoves(LiveVarsAnal lva) {
+
+        for (BasicBlock b : lva.blocks) {
+
+            for (int k = b.instrs.size() - 1; k >= 0; --k) {
+
+                Instr i = b.instrs.get(k);
+
+                if (!isMoveInstr(i))
+                    continue;
+
+                int[] use = lva.useIds(i);
+                int[] def = lva.defIds(i);
 
-            if (isMoveInstr(i)) {
-                for (Register w : lva.use(i)) {
-                    live.remove(registerSet.get(w));
-                }
-                // live.removeAll(lva.use(i));
                 IntfMove move = new IntfMove(i);
+                move.id = moves.size();
+                move.xId = table.id(move.x());
+                move.yId = table.id(move.y());
+                moves.add(move);
 
-                for (Register r : lva.def(i)) {
+                for (int d : def) {
 
-                    moveListPut(registerSet.get(r), move);
+                    moveListPut(d, move);
                 }
-                for (Register r : lva.use(i)) {
+                for (int u : use) {
 
-                    moveListPut(registerSet.get(r), move);
+                    moveListPut(u, move);
                 }
 
-                move.category = Category.worklist;
                 // worklistMoves.add(move);
-                addSetMove(worklistMoves, move, "build");
+                addMove(Category.worklist, move, "build");
 
             }
-            if (lva.def(i) != null) {
-                for (Register w : lva.def(i)) {
-                    live.add(registerSet.get(w));
-                }
-                // live.addAll(lva.def(i));
-                // addAllSet(live, lva.def(i), "live (lva def)");
+
+        }
+
+    }
+
+    /**
+     * Add the edges of the instruction i, and step live from the live out set of i to its live in set.
+     */
+    void buildInstr(LiveVarsAnal lva, Instr i, LiveSet live) {
+
+        int[] use = lva.useIds(i);
+        int[] def = lva.defIds(i);
+
+        // the registers live out of a call that the call does not define are live across it
+        if (i instanceof UnOp && ((UnOp) i).op == UnOpType.callq) {
+            for (int s = live.nextSetBit(0); s >= 0; s = live.nextSetBit(s + 1)) {
+                if (!LiveVarsAnal.contains(def, s))
+                    acrossCalls.add(s);
             }
+        }
 
-            Set<Register> temp = new HashSet<>();
-            for (Register r : lva.def(i)) {
-                temp.add(registerSet.get(r));
+        if (isMoveInstr(i)) {
+            for (int u : use) {
+                live.remove(u);
             }
-            // add an edge to all registers that are interfering with each other
-            for (Register r : temp) {
+            // live.removeAll(lva.use(i));
+        }
+        for (int d : def) {
+            live.add(d);
+        }
 
-                for (Register s : live) {
+        // add an edge to all registers that are interfering with each other
+        for (int d : def) {
 
-                    addEdge(r, s);
+            for (int s = live.nextSetBit(0); s >= 0; s = live.nextSetBit(s + 1)) {
 
-                }
+                addEdge(d, s);
 
             }
 
         }
+
+        lva.transferInstr(i, live);
     }
 
     /**
      * Create all the worklists.
      */
     void makeWorkList() {
-        for (Iterator<Register> iterator = initial.iterator(); iterator.hasNext();) {
-            Register n = iterator.next();
+        while (!lists.isEmpty(Type.initial.ordinal())) {
+            Register n = table.get(lists.first(Type.initial.ordinal()));
 
             if (getDegree(n) >= K) {
 
-                n.type = Type.spilling;
                 // spillWorklist.add(n);
-                addQueue(spillWorklist, n, "spill (initial)");
+                addList(Type.spilling, n, "spill (initial)");
 
             } else if (moveRelated(n)) {
 
-                n.type = Type.freeze;
                 // freezeWorklist.add(n);
-                addList(freezeWorklist, n, "freeze (initial)");
+                addList(Type.freeze, n, "freeze (initial)");
                 // System.out.println("FREEZING 1:" + n.hashCode() + " " + n);
 
             } else {
 
-                n.type = Type.simplify;
                 // simplifyWorklist.add(n);
-                addList(simplifyWorklist, n, "simplify (initial)");
+                addList(Type.simplify, n, "simplify (initial)");
 
             }
-
-            iterator.remove();
         }
 
     }
@@ -223,7 +289,12 @@ public class IntfGraphTest {
      */
     boolean moveRelated(Register n) {
 
-        return !nodeMoves(n).isEmpty();
+        IntList ms = moveList(table.id(n));
+        for (int k = 0; ms != null && k < ms.size(); ++k) {
+            if (isNodeMove(moves.get(ms.get(k))))
+                return true;
+        }
+        return false;
 
     }
 
@@ -248,19 +319,19 @@ public class IntfGraphTest {
      */
     void simplify(LiveVarsAnal lva, List<Instr> instrs) {
 
-        Register n = pollList(simplifyWorklist, "simplify worklist (simplify)");
+        Register n = pollList(Type.simplify, "simplify worklist (simplify)");
         // Register n = simplifyWorklist.poll();
 
         assert n != null;
 
-        n.type = Type.selected;
+        pushList(Type.selected, n, "select stack (simplify)");
 
-        selectStack.push(n);
+        IntList adj = adjList(table.id(n));
 
-        Set<Register> adjs = adjacent(n);
-
-        for (Register m : adjs) {
-            decrementDegree(m);
+        for (int k = 0; adj != null && k < adj.size(); ++k) {
+            Register m = table.get(adj.get(k));
+            if (inGraph(m))
+                decrementDegree(m);
         }
 
     }
@@ -287,22 +358,36 @@ public class IntfGraphTest {
      */
     void addEdge(Register r, Register s) {
 
-        if (!adjSet.contains(new Pair<>(r, s)) && !r.equals(s)) {
+        addEdge(table.id(r), table.id(s));
+
+    }
+
+    /**
+     * Add an edge between the registers with ids a and b.
+     */
+    void addEdge(int a, int b) {
+
+        if (a != b && !adjSet.contains(a, b)) {
 
-            adjSet.add(new Pair<>(r, s));
-            adjSet.add(new Pair<>(s, r));
+            adjSet.add(a, b);
+            edges++;
+
+            Register r = table.get(a);
+            Register s = table.get(b);
 
             if (r.type != Register.Type.precolored) {
 
-                adjListPut(r, s);
+                adjListPut(a, b);
                 r.degree += 1;
+                updatePriority(r, a);
 
             }
 
             if (s.type != Register.Type.precolored) {
 
-                adjListPut(s, r);
+                adjListPut(b, a);
                 s.degree += 1;
+                updatePriority(s, b);
 
             }
         }
@@ -314,9 +399,11 @@ public class IntfGraphTest {
      */
     void addNode(Register r) {
 
-        registerSet.put(r, r);
+        Register k = table.intern(r);
 
-        Register k = registerSet.get(r);
+        // the same register objects are reused by every round of allocation
+        k.degree = 0;
+        k.alias = null;
 
         if (k.type == Register.Type.precolored) {
 
@@ -325,44 +412,60 @@ public class IntfGraphTest {
 
         } else {
 
-            k.type = Register.Type.initial;
-            addSet(initial, k, "initial (add node)");
+            addList(Type.initial, k, "initial (add node)");
             // initial.add(r);
+            nodes++;
 
         }
 
     }
 
     /** 
-     * A helper function to put i and j into the adjacent list.
+     * A helper function to put j into the adjacent list of i.
      */
-    void adjListPut(Register i, Register j) {
+    void adjListPut(int i, int j) {
 
-        Set<Register> child = adjList.get(i);
+        if (i >= adjList.length)
+            adjList = Arrays.copyOf(adjList, Math.max(i + 1, adjList.length * 2));
 
-        if (child == null)
-            child = new HashSet<>();
+        IntList child = adjList[i];
+
+        if (child == null) {
+            child = new IntList();
+            adjList[i] = child;
+        }
 
         child.add(j);
 
-        adjList.put(i, child);
+    }
 
+    // the adjacent list of the register with id i, or null if it has none.
+    IntList adjList(int i) {
+        return i < adjList.length ? adjList[i] : null;
     }
 
     /**
-     * A helper function to put i and j into the list of moves.
+     * A helper function to put the move j into the list of moves of the register with id i.
      */
-    void moveListPut(Register i, IntfMove j) {
+    void moveListPut(int i, IntfMove j) {
 
-        Set<IntfMove> child = moveList.get(i);
+        if (i >= moveList.length)
+            moveList = Arrays.copyOf(moveList, Math.max(i + 1, moveList.length * 2));
 
-        if (child == null)
-            child = new HashSet<>();
+        IntList child = moveList[i];
 
-        child.add(j);
+        if (child == null) {
+            child = new IntList();
+            moveList[i] = child;
+        }
+
+        child.add(j.id);
 
-        moveList.put(i, child);
+    }
 
+    // the ids of the moves of the register with id i, or null if it has none.
+    IntList moveList(int i) {
+        return i < moveList.length ? moveList[i] : null;
     }
 
     /**
@@ -375,49 +478,35 @@ public class IntfGraphTest {
     }
 
     /**
-     * All moves related to the register n.
+     * Whether the move m is still a candidate for coalescing, i.e. it is active or on the worklist. The moves related
+     * to a node n are its moves of moveList(id of n) for which this holds.
      */
-    Set<IntfMove> nodeMoves(Register n) {
-        Set<IntfMove> res = new HashSet<>();
-        res.addAll(activeMoves);
-        res.addAll(worklistMoves);
-
-        Set<IntfMove> move_n = moveList.get(n);
-        if (move_n != null)
-            res.retainAll(move_n);
-        return res;
+    static boolean isNodeMove(IntfMove m) {
+        return m.category == Category.active || m.category == Category.worklist;
     }
 
     /**
-     * Move all registers in nodes to the worklist.
+     * Move all active moves of the register n back to the worklist.
      */
-    void enableMoves(Set<Register> nodes) {
-        for (Register n : nodes) {
-            for (IntfMove m : nodeMoves(n)) {
-                if (activeMoves.contains(m)) {
-                    // activeMoves.remove(m);
-                    removeSetMove(activeMoves, m, "activeMoves (enableMoves)");
-                    m.category = Category.worklist;
-                    // worklistMoves.add(m);
-                    addSetMove(worklistMoves, m, "worklistMoves (enableMoves)");
-                }
+    void enableMoves(Register n) {
+        IntList ms = moveList(table.id(n));
+        for (int k = 0; ms != null && k < ms.size(); ++k) {
+            IntfMove m = moves.get(ms.get(k));
+            if (m.category == Category.active) {
+                // activeMoves.remove(m);
+                // worklistMoves.add(m);
+                addMove(Category.worklist, m, "worklistMoves (enableMoves)");
             }
         }
     }
 
     /**
-     * The set of registers adjacent to n.
+     * Whether the register t is still in the graph, i.e. it is not selected, coalesced or colored. The neighbours of a
+     * node n are the registers of adjList(id of n) for which this holds; they are walked in place, without copying
+     * the list.
      */
-    Set<Register> adjacent(Register n) {
-        Set<Register> res = new HashSet<>();
-        if (adjList.get(n) != null)
-            res.addAll(adjList.get(n));
-        Set<Register> temp = new HashSet<>();
-        temp.addAll(coloredNodes);
-        temp.addAll(selectStack);
-        res.removeAll(temp);
-
-        return res;
+    boolean inGraph(Register t) {
+        return t.type != Type.selected && t.type != Type.coalesced && t.type != Type.colored;
     }
 
     /**
@@ -426,28 +515,28 @@ public class IntfGraphTest {
     void decrementDegree(Register m) {
         int d = m.degree;
         m.degree = d - 1;
+        updatePriority(m, table.id(m));
         if (d == K) {
-            Set<Register> ms = new HashSet<>();
-            ms.add(m);
-            if (adjacent(m) != null)
-                ms.addAll(adjacent(m));
-            enableMoves(ms);
+            enableMoves(m);
+            IntList adj = adjList(table.id(m));
+            for (int k = 0; adj != null && k < adj.size(); ++k) {
+                Register t = table.get(adj.get(k));
+                if (inGraph(t))
+                    enableMoves(t);
+            }
             // spillWorklist.remove(m);
-            removeQueue(spillWorklist, m, "spill (decrement degree)");
 
             if (moveRelated(m)) {
                 if (m.type != Type.freeze) {
-                    m.type = Type.freeze;
                     // freezeWorklist.add(m);
 
-                    addList(freezeWorklist, m, "freeze (decrement degree)");
+                    addList(Type.freeze, m, "freeze (decrement degree)");
                 }
 
             } else {
                 if (m.type != Type.simplify) {
-                    m.type = Type.simplify;
                     // simplifyWorklist.add(m);
-                    addList(simplifyWorklist, m, "simplify (decrement degree)");
+                    addList(Type.simplify, m, "simplify (decrement degree)");
                 }
             }
         }
@@ -457,14 +546,8 @@ public class IntfGraphTest {
      * Combine the two registers.
      */
     void combine(Register u, Register v) {
-        if (v.type == Type.freeze) {
-            // freezeWorklist.remove(v);
-            removeList(freezeWorklist, v, "freeze (combine) 1");
-        } else
-            // spillWorklist.remove(v);
-            removeQueue(spillWorklist, v, "spill (combine)");
+        // freezeWorklist.remove(v) or spillWorklist.remove(v) happen when v is moved to the coalesced list
         if (v.type != Type.coalesced) {
-            v.type = Type.coalesced;
 
             // for (Register r : adjList.keySet()) {
             // if (adjList.get(r).contains(v)) {
@@ -475,31 +558,33 @@ public class IntfGraphTest {
             // }
 
             // coalescedNodes.add(v);
-            addSet(coalescedNodes, v, "coalesced (combine)");
+            addList(Type.coalesced, v, "coalesced (combine)");
         }
         v.alias = u;
 
-        Set<IntfMove> ul = new HashSet<>();
-        ul.addAll(moveList.get(u));
-        if (moveList.get(v) != null)
-            ul.addAll(moveList.get(v));
-        moveList.put(u, ul);
+        // moveList[u] = moveList[u] + moveList[v]. A move may appear twice in the list, which is harmless.
+        IntList vm = moveList(table.id(v));
+        for (int k = 0; vm != null && k < vm.size(); ++k)
+            moveListPut(table.id(u), moves.get(vm.get(k)));
 
-        Set<Register> vl = new HashSet<>();
-        vl.add(v);
-        enableMoves(vl);
+        enableMoves(v);
 
-        for (Register t : adjacent(v)) {
-            addEdge(t, u);
-            decrementDegree(t);
+        int uid = table.id(u);
+        if (acrossCalls.contains(table.id(v)))
+            acrossCalls.add(uid);
+
+        IntList adj = adjList(table.id(v));
+        for (int k = 0; adj != null && k < adj.size(); ++k) {
+            int t = adj.get(k);
+            if (!inGraph(table.get(t)))
+                continue;
+            addEdge(t, uid);
+            decrementDegree(table.get(t));
         }
         if (u.degree >= K && u.type == Type.freeze) {
             // freezeWorklist.remove(u);
-            removeList(freezeWorklist, u, "freeze (combine) 2");
-
-            u.type = Type.spilled;
             // spillWorklist.add(u);
-            addQueue(spillWorklist, u, "spill (combine)");
+            addList(Type.spilling, u, "spill (combine)");
         }
     }
 
@@ -509,12 +594,8 @@ public class IntfGraphTest {
     void addWorklist(Register u) {
         if (u.type != Type.precolored && !moveRelated(u) && u.degree < K) {
             // freezeWorklist.remove(u);
-            removeList(freezeWorklist, u, "freeze worklist (addWorklist)");
-
-            u.type = Type.simplify;
-
             // simplifyWorklist.add(u);
-            addList(simplifyWorklist, u, "simplify (addWorklist)");
+            addList(Type.simplify, u, "simplify (addWorklist)");
 
             // for (Register r : adjList.keySet()) {
             // if (adjList.get(r).contains(u)) {
@@ -530,17 +611,32 @@ public class IntfGraphTest {
      * Check the boolean ok() for the two registers.
      */
     boolean ok(Register t, Register r) {
-        return (t.degree < K) || (t.type == Type.precolored) || (adjSet.contains(new Pair<Register>(t, r)));
+        return (t.degree < K) || (t.type == Type.precolored) || (adjSet.contains(table.id(t), table.id(r)));
     }
 
-    /** A boolean that checks if we need to spill the register.
+    /** A boolean that checks if we need to spill the register: whether the union of the neighbours of u and v has
+     * fewer than K nodes of significant degree.
      */
-    boolean conservative(Set<Register> nodes) {
+    boolean conservative(Register u, Register v) {
+        int uid = table.id(u);
         int k = 0;
-        for (Register n : nodes) {
-            if (n.degree >= K)
+
+        IntList adj = adjList(uid);
+        for (int i = 0; adj != null && i < adj.size(); ++i) {
+            Register n = table.get(adj.get(i));
+            if (inGraph(n) && n.degree >= K)
+                k++;
+        }
+
+        // neighbours of v that are also neighbours of u were counted already
+        adj = adjList(table.id(v));
+        for (int i = 0; adj != null && i < adj.size(); ++i) {
+            int t = adj.get(i);
+            Register n = table.get(t);
+            if (inGraph(n) && n.degree >= K && !adjSet.contains(t, uid))
                 k++;
         }
+
         return k < K;
     }
 
@@ -548,14 +644,13 @@ public class IntfGraphTest {
      * Execute freeze() in the algorithm.
      */
     void freeze() {
-        if (!freezeWorklist.isEmpty()) {
+        if (!isEmpty(Type.freeze)) {
 
-            Register r = pollList(freezeWorklist, "freeze work list (freeze)");
+            Register r = pollList(Type.freeze, "freeze work list (freeze)");
             // Register r = freezeWorklist.poll();
 
-            r.type = Type.simplify;
             // simplifyWorklist.add(r);
-            addList(simplifyWorklist, r, "simplify (freeze)");
+            addList(Type.simplify, r, "simplify (freeze)");
 
             freezeMoves(r);
 
@@ -568,30 +663,30 @@ public class IntfGraphTest {
      */
     void freezeMoves(Register r) {
 
-        for (IntfMove m : nodeMoves(r)) {
+        IntList ms = moveList(table.id(r));
+
+        for (int k = 0; ms != null && k < ms.size(); ++k) {
+
+            IntfMove m = moves.get(ms.get(k));
+            if (!isNodeMove(m))
+                continue;
 
-            Register x = registerSet.get(m.x());
-            Register y = registerSet.get(m.y());
+            Register x = table.get(m.xId);
+            Register y = table.get(m.yId);
             Register v = getAlias(y);
 
-            if (getAlias(y).equals(getAlias(r))) {
+            if (getAlias(y) == getAlias(r)) {
                 v = getAlias(x);
             }
 
             // activeMoves.remove(m);
-            removeSetMove(activeMoves, m, "active moves (freezeMoves)");
             // frozenMoves.add(m);
-            addSetMove(frozenMoves, m, "freeze moves (freezeMoves)");
-            m.category = IntfMove.Category.frozen;
+            addMove(Category.frozen, m, "freeze moves (freezeMoves)");
 
-            if (v.type == Type.freeze && nodeMoves(v).isEmpty()) {
-                removeList(freezeWorklist, v, "freeze worklist (freezeMoves)");
+            if (v.type == Type.freeze && !moveRelated(v)) {
                 // freezeWorklist.remove(v);
-
-                v.type = Type.simplify;
-
                 // simplifyWorklist.add(v);
-                addList(simplifyWorklist, v, "simplify worklist (freezeMoves)");
+                addList(Type.simplify, v, "simplify worklist (freezeMoves)");
             }
 
         }
@@ -602,13 +697,10 @@ public class IntfGraphTest {
      */
     void selectSpill() {
 
-        Register m = pollList(spillWorklist, "spill worklist (select spill)");
-        // Register m = spillWorklist.poll();
-        // selected using heuristic TODO improve
-
-        m.type = Type.simplify;
+        // the node with the lowest priority; the heap is kept up to date as degrees change
+        Register m = table.get(spillHeap.peek());
 
-        addList(simplifyWorklist, m, "simplify worklist (select spill)");
+        addList(Type.simplify, m, "simplify worklist (select spill)");
         // simplifyWorklist.add(m);
 
         freezeMoves(m);
@@ -619,32 +711,36 @@ public class IntfGraphTest {
      * Assign colors to the registers in the select stack.
      */
     void assignColors() {
-        while (!selectStack.empty()) {
+        while (!isEmpty(Type.selected)) {
 
-            Register n = selectStack.pop();
+            Register n = pollList(Type.selected, "select stack (assign colors)");
 
-            Set<regNames> okColors = new HashSet<regNames>();
-            okColors.addAll(Register.all_regs);
+            // the colors taken by the neighbours of n, by ordinal
+            boolean[] taken = new boolean[regNames.values().length];
 
-            if (adjList.get(n) != null) {
+            IntList adj = adjList(table.id(n));
 
-                for (Register w : adjList.get(n)) {
+            if (adj != null) {
+
+                for (int k = 0; k < adj.size(); ++k) {
+
+                    Register w = table.get(adj.get(k));
 
                     Register alias = getAlias(w);
                     Type type = alias.type;
 
                     if (type == Type.colored) {
 
-                        okColors.remove(colorMap.get(alias.getArgName()));
+                        taken[colorMap.get(alias.getArgName()).ordinal()] = true;
                     } else if (type == Type.precolored) {
 
-                        okColors.remove(alias.getRegNames());
+                        taken[alias.getRegNames().ordinal()] = true;
                     } else if (type == null) {
                         String argName = alias.getArgName();
                         regNames color = colorMap.get(argName);
                         if (color != null) {
                             alias.type = Type.colored;
-                            okColors.remove(color);
+                            taken[color.ordinal()] = true;
                         }
                     } else {
                     }
@@ -652,23 +748,38 @@ public class IntfGraphTest {
                 }
             }
 
-            if (okColors.isEmpty()) {
-                n.type = Type.spilled;
-                addSet(spilledNodes, n, "spilledNodes(assign colors)");
+            List<regNames> order = acrossCalls.contains(table.id(n)) ? CALLEE_SAVED_FIRST : CALLER_SAVED_FIRST;
+
+            // prefer a color of a move partner, which makes the move a self move that can be deleted
+            boolean[] partner = partnerColors(n);
+
+            regNames r = null;
+            for (regNames c : order) {
+                if (!taken[c.ordinal()] && partner[c.ordinal()]) {
+                    r = c;
+                    break;
+                }
+            }
+            for (int k = 0; r == null && k < order.size(); ++k) {
+                if (!taken[order.get(k).ordinal()])
+                    r = order.get(k);
+            }
+
+            if (r == null) {
+                addList(Type.spilled, n, "spilledNodes(assign colors)");
                 // spilledNode.add(n);
 
             } else {
-                n.type = Type.colored;
-
-                addSet(coloredNodes, n, "coloredNodes(n)");
+                addList(Type.colored, n, "coloredNodes(n)");
                 // coloredNodes.add(n);
-                regNames r = okColors.iterator().next();
                 colorMap.put(n.getArgName(), r);
 
             }
         }
 
-        for (Register n : coalescedNodes) {
+        for (int id = lists.first(Type.coalesced.ordinal()); id != NodeLists.NONE; id = lists.next(id)) {
+
+            Register n = table.get(id);
 
             if (colorMap.get(getAlias(n).getArgName()) != null) {
                 colorMap.put(n.getArgName(), colorMap.get(getAlias(n).getArgName()));
@@ -682,133 +793,418 @@ public class IntfGraphTest {
     }
 
     /**
-     * Rewrite the whole program and do another round of LVA on the program after some registers are spilled.
+     * The colors of the nodes that n is move related to and that are colored already, by ordinal. These are the
+     * moves that coalescing did not remove: the constrained, frozen and still active ones.
+     */
+    private boolean[] partnerColors(Register n) {
+
+        boolean[] partner = new boolean[regNames.values().length];
+
+        IntList ms = moveList(table.id(n));
+
+        for (int k = 0; ms != null && k < ms.size(); ++k) {
+
+            IntfMove m = moves.get(ms.get(k));
+
+            Register x = getAlias(table.get(m.xId));
+            Register y = getAlias(table.get(m.yId));
+            Register other = x == n ? y : x;
+
+            if (other == n)
+                continue;
+
+            regNames c = other.type == Type.precolored ? other.getRegNames() : colorMap.get(other.getArgName());
+            if (c != null)
+                partner[c.ordinal()] = true;
+        }
+
+        return partner;
+    }
+
+    /**
+     * Rewrite the whole program after some registers are spilled. Every spilled register gets its stack slot first,
+     * then one pass over the basic blocks of lva replaces each use and def of a spilled register by a new
+     * temporary, loaded before the instruction and stored after it. The instructions of each block are streamed
+     * into a new list, and instrs is rebuilt from the blocks.
      * @param ra The register allocation program to get the memory offset from.
      * @param lva The information of the old live variable analysis.
      * @param instrs The instructions to process (conduct register allocation) and to modify.
+     * @param spilled The ids of the spilled nodes to rewrite, from spilledIds.
+     * @return the blocks that got spill code
+     */
+    Set<BasicBlock> rewriteProgram(RegisterAlloc ra, LiveVarsAnal lva, List<Instr> instrs, int[] spilled) {
+
+        // the neighbours of the spilled nodes as built, before coalescing merged any nodes
+        List<Set<String>> neighbours = new ArrayList<>();
+        for (int id : spilled) {
+            Set<String> names = new HashSet<>();
+            IntList adj = id < builtAdjList.length ? builtAdjList[id] : null;
+            for (int k = 0; adj != null && k < adj.size(); ++k) {
+                if (!RegisterTable.isPrecolored(adj.get(k)))
+                    names.add(table.get(adj.get(k)).getArgName());
+            }
+            neighbours.add(names);
+        }
+
+        return rewriteProgram(ra, lva, instrs, spilled, neighbours);
+
+    }
+
+    /**
+     * Rewrite the program for the registers with the ids in spilled, the same way as rewriteProgram above. Also
+     * used by the allocators that do not build an interference graph.
+     * @param neighbours the names of the abstract registers that interfere with each spilled register, for
+     *                   RegisterAlloc.spillSlots
+     * @return the blocks that got spill code
      */
-    void rewriteProgram(RegisterAlloc ra, LiveVarsAnal lva, List<Instr> instrs) {
+    static Set<BasicBlock> rewriteProgram(RegisterAlloc ra, LiveVarsAnal lva, List<Instr> instrs, int[] spilled,
+            List<Set<String>> neighbours) {
 
-        for (Register r : spilledNodes) {
+        RegisterTable table = lva.table;
 
-            int n = ra.newMemoryOffset();
+        // the definition of every spilled register that is recomputed at its uses instead of stored
+        Instr[] remat = new Instr[table.size()];
 
-            for (int i = 0; i < instrs.size(); ++i) {
+        List<Register> regs = new ArrayList<>();
+        List<Set<String>> stored = new ArrayList<>();
+        for (int k = 0; k < spilled.length; ++k) {
+            remat[spilled[k]] = lva.rematDef(spilled[k]);
+            if (remat[spilled[k]] == null) {
+                regs.add(table.get(spilled[k]));
+                stored.add(neighbours.get(k));
+            }
+        }
+        int[] slots = ra.spillSlots(regs, stored);
 
-                Instr instr = instrs.get(i);
+        // the stack slot of every spilled register id, -1 for registers that are not stored
+        int[] slot = new int[table.size()];
+        Arrays.fill(slot, -1);
 
-                Mem m = ra.getMemory(instr, n);
+        for (int k = 0; k < regs.size(); ++k) {
+            slot[table.id(regs.get(k))] = slots[k];
+        }
 
+        Set<BasicBlock> patched = new LinkedHashSet<>();
 
-                if (lva.use(instr).contains(r) && lva.def(instr).contains(r)) {
-                    Register r0 = new Register(Factory.tempFactory());
-                    instrs.add(i, new BinOp(OpType.movq, m, r0));
-                    instrs.add(i + 2, new BinOp(OpType.movq, r0, m));
-                    i += 2;
-                    lva.useReplace(instr, r, r0);
-                    lva.defReplace(instr, r, r0);
+        // the stores to insert after the current instruction
+        List<Instr> stores = new ArrayList<>();
+
+        for (BasicBlock b : lva.blocks) {
+
+            List<Instr> code = new ArrayList<>(b.instrs.size() + 8);
+
+            for (Instr instr : b.instrs) {
+
+                int[] use = lva.useIds(instr);
+                int[] def = lva.defIds(instr);
+
+                // the definition of a rematerialized register is not needed any more
+                if (def.length == 1 && remat[def[0]] != null) {
+                    patched.add(b);
+                    continue;
                 }
 
-                else if (lva.use(instr).contains(r)) {
-                    Register r0 = new Register(Factory.tempFactory());
-                    instrs.add(i, new BinOp(OpType.movq, m, r0));
-                    i++;
+                int loads = code.size();
+
+                for (int id : use) {
+
+                    if (remat[id] != null) {
+                        Register r0 = ra.newTemp();
+                        code.add(rematerialize(remat[id], instr, r0));
+                        lva.useReplace(instr, table.get(id), r0);
+                        continue;
+                    }
+
+                    if (slot[id] < 0)
+                        continue;
+
+                    Register r = table.get(id);
+                    Register r0 = ra.newTemp();
+                    Mem m = ra.getMemory(instr, slot[id]);
+
+                    code.add(spillMove(instr, m, r0));
                     lva.useReplace(instr, r, r0);
                     // replace use of r in this instruction with r0
 
-                } else if (lva.def(instr).contains(r)) {
-                    Register r0 = new Register(Factory.tempFactory());
-                    instrs.add(i + 1, new BinOp(OpType.movq, r0, m));
-                    i++;
+                    if (LiveVarsAnal.contains(def, id)) {
+                        stores.add(spillMove(instr, r0, m));
+                        lva.defReplace(instr, r, r0);
+                    }
+                }
+
+                for (int id : def) {
+
+                    if (slot[id] < 0 || LiveVarsAnal.contains(use, id))
+                        continue;
+
+                    Register r = table.get(id);
+                    Register r0 = ra.newTemp();
+
+                    stores.add(spillMove(instr, r0, ra.getMemory(instr, slot[id])));
                     lva.defReplace(instr, r, r0);
                     // replace def of r in this instruction with r0
+                }
+
+                if (code.size() > loads || !stores.isEmpty())
+                    patched.add(b);
+
+                code.add(instr);
+                code.addAll(stores);
+                stores.clear();
+            }
+
+            b.instrs = code;
+        }
+
+        instrs.clear();
+        for (BasicBlock b : lva.blocks)
+            instrs.addAll(b.instrs);
+
+        return patched;
+
+    }
+
+    // a load or store of a spilled register next to the instruction at. It has the stack offset of at, since it
+    // does not move the stack pointer itself.
+    private static Instr spillMove(Instr at, Arg src, Arg dest) {
+        Instr move = new BinOp(OpType.movq, src, dest);
+        move.stackOffset = at.stackOffset;
+        return move;
+    }
+
+    /**
+     * Spill every node of this round that is neither precolored nor a spill temporary of ra. This is the fallback
+     * of RegisterAlloc once coloring keeps spilling: every register then lives in its stack slot, and the spill
+     * temporaries only live across single instructions. Spilling a spill temporary again would free nothing.
+     */
+    void spillAll(RegisterAlloc ra) {
+        for (int id = RegisterTable.PRECOLORED; id < table.size(); ++id) {
+            Register r = table.get(id);
+            if (ra.isSpillTemp(r))
+                continue;
+            if (r.type == Type.colored || r.type == Type.coalesced)
+                addList(Type.spilled, r, "spilledNodes (spill all)");
+        }
+    }
 
+    // a copy of the definition def of a rematerialized register that defines r0 instead, placed before the
+    // instruction at.
+    private static Instr rematerialize(Instr def, Instr at, Register r0) {
+        BinOp d = (BinOp) def;
+        Instr copy = new BinOp(d.op, d.arg1.copy(), r0);
+        copy.stackOffset = at.stackOffset;
+        return copy;
+    }
+
+    // the ids of the spilled nodes.
+    int[] spilledIds() {
+        IntList ids = new IntList();
+        for (int id = lists.first(Type.spilled.ordinal()); id != NodeLists.NONE; id = lists.next(id))
+            ids.add(id);
+        int[] result = new int[ids.size()];
+        for (int k = 0; k < result.length; ++k)
+            result[k] = ids.get(k);
+        return result;
+    }
+
+    /**
+     * Prepare another round of coloring after rewriteProgram replaced the spilled nodes by spill temporaries,
+     * starting from the graph as built in the last round instead of building it from nothing.
+     *
+     * Every use and def of a spilled node was replaced, so it loses all its edges. The temporaries only live
+     * between an instruction and its load or store, so their edges are all inside the changed blocks, as are the
+     * edges of registers whose liveness changed (the stack pointer used by the spill code). All other edges stay
+     * as they were, so walking the changed blocks again completes the graph.
+     *
+     * @param lva     the live variable analysis, already updated by LiveVarsAnal.respill
+     * @param instrs  the rewritten instructions
+     * @param spilled the ids of the spilled nodes
+     * @param changed the blocks that got spill code or whose live out set changed
+     */
+    void respill(LiveVarsAnal lva, List<Instr> instrs, int[] spilled, Set<BasicBlock> changed) {
+
+        adjList = copy(builtAdjList);
+        adjSet = new IntfMatrix(builtAdjSet);
+        edges = builtEdges;
+
+        colorMap = new HashMap<>();
+
+        precolored = new HashSet<>();
+        lists = new NodeLists(table.size(), Type.values().length);
+        spillHeap = new SpillHeap(table.size());
+
+        moves = new ArrayList<>();
+        moveLists = new NodeLists(0, Category.values().length);
+
+        moveList = new IntList[table.size()];
+
+        acrossCalls = new LiveSet(builtAcrossCalls);
+
+        addNodes(lva, instrs);
+
+        // addNodes cleared the degrees
+        for (int id = 0; id < builtDegree.length; ++id)
+            table.get(id).degree = builtDegree[id];
+
+        for (int s : spilled) {
+
+            IntList adj = adjList(s);
+
+            for (int k = 0; adj != null && k < adj.size(); ++k) {
+
+                int n = adj.get(k);
+                adjSet.remove(s, n);
+                edges--;
+
+                if (!RegisterTable.isPrecolored(n)) {
+                    adjList[n].remove(s);
+                    table.get(n).degree -= 1;
                 }
+
             }
-            
+
+            if (s < adjList.length)
+                adjList[s] = null;
         }
 
+        for (BasicBlock b : changed) {
+
+            buildBlock(lva, b);
+
+        }
+
+        buildMoves(lva);
+
+        save();
+    }
+
+    // remember the graph as built, for the next spill round.
+    private void save() {
+
+        builtAdjList = copy(adjList);
+        builtAdjSet = new IntfMatrix(adjSet);
+        builtEdges = edges;
+        builtAcrossCalls = new LiveSet(acrossCalls);
+
+        builtDegree = new int[table.size()];
+        for (int id = 0; id < builtDegree.length; ++id)
+            builtDegree[id] = table.get(id).degree;
+    }
+
+    private static IntList[] copy(IntList[] lists) {
+        IntList[] result = new IntList[lists.length];
+        for (int k = 0; k < lists.length; ++k) {
+            if (lists[k] != null)
+                result[k] = new IntList(lists[k]);
+        }
+        return result;
     }
 
     /**
      * Execute coalesce() in the algorithm.
      */
     void coalesce() {
-        if (!worklistMoves.isEmpty()) {
-            IntfMove m = worklistMoves.iterator().next();
-            Register x = registerSet.get(m.x());
-            Register y = registerSet.get(m.y());
+        if (!isEmpty(Category.worklist)) {
+            IntfMove m = moves.get(moveLists.first(Category.worklist.ordinal()));
+            Register x = table.get(m.xId);
+            Register y = table.get(m.yId);
             x = getAlias(x);
             y = getAlias(y);
 
-            Pair<Register> uv;
-            if (y.type == Type.precolored)
-                uv = new Pair<>(y, x);
-            else
-                uv = new Pair<>(x, y);
+            Register u;
+            Register v;
+            if (y.type == Type.precolored) {
+                u = y;
+                v = x;
+            } else {
+                u = x;
+                v = y;
+            }
             // worklistMoves.remove(m);
-            removeSetMove(worklistMoves, m, "worklistMoves (coalesce)");
 
-            if (uv.first.equals(uv.second)) {
+            if (u == v) {
                 // coalescedMoves.add(m);
-                addSetMove(coalescedMoves, m, "coalescedMoves 1 (coalesce)");
-                m.category = Category.coalesced;
-                addWorklist(uv.first);
-            } else if (uv.second.type == Type.precolored || adjSet.contains(uv)) {
+                addMove(Category.coalesced, m, "coalescedMoves 1 (coalesce)");
+                addWorklist(u);
+            } else if (v.type == Type.precolored || adjSet.contains(table.id(u), table.id(v))) {
                 // constrainedMoves.add(m);
-                addSetMove(constrainedMoves, m, "constrainedMoves (coalesce)");
-                m.category = Category.constrained;
-                addWorklist(uv.first);
-                addWorklist(uv.second);
+                addMove(Category.constrained, m, "constrainedMoves (coalesce)");
+                addWorklist(u);
+                addWorklist(v);
             } else {
                 boolean is_ok = true;
-                for (Register t : adjacent(uv.second)) {
-                    if (!ok(t, uv.first)) {
+                IntList adj = adjList(table.id(v));
+                for (int k = 0; adj != null && k < adj.size(); ++k) {
+                    Register t = table.get(adj.get(k));
+                    if (inGraph(t) && !ok(t, u)) {
                         is_ok = false;
+                        break;
                     }
                 }
-                Set<Register> adj_uv = new HashSet<>();
-                if (adjacent(uv.first) != null)
-                    adj_uv.addAll(adjacent(uv.first));
-                if (adjacent(uv.second) != null)
-                    adj_uv.addAll(adjacent(uv.second));
-
-                if ((uv.first.type == Type.precolored && is_ok)
-                        || (uv.first.type != Type.precolored && conservative(adj_uv))) {
+
+                if ((u.type == Type.precolored && is_ok)
+                        || (u.type != Type.precolored && conservative(u, v))) {
                     // coalescedMoves.add(m);
-                    addSetMove(coalescedMoves, m, "coalescedMoves 2 (coalesce)");
-                    m.category = Category.coalesced;
-                    combine(uv.first, uv.second);
-                    addWorklist(uv.first);
+                    addMove(Category.coalesced, m, "coalescedMoves 2 (coalesce)");
+                    combine(u, v);
+                    addWorklist(u);
                 } else {
-                    m.category = Category.active;
                     // activeMoves.add(m);
-                    addSetMove(activeMoves, m, "activeMoves (coalesce)");
+                    addMove(Category.active, m, "activeMoves (coalesce)");
                 }
 
             }
         }
     }
 
-    // Add the register reg in the worklist. info is used to print this addition as an log.
-    void addList(Queue<Register> worklist, Register reg, String info) {
-        // System.out.println(info + "list " + worklist + " add " + reg);
-        worklist.add(reg);
+    // Move the register reg to the end of the list of the given type, and set its type to it. info is used to print
+    // this addition as an log.
+    void addList(Type list, Register reg, String info) {
+        // System.out.println(info + "list " + list + " add " + reg);
+        int id = table.id(reg);
+        if (reg.type == Type.spilling)
+            spillHeap.remove(id);
+        reg.type = list;
+        lists.add(list.ordinal(), id);
+        if (list == Type.spilling)
+            spillHeap.insert(id, reg.priority());
     }
 
-    // Remove the register reg from the worklist. info is used to print this operation as an log.
-    void removeList(Queue<Register> worklist, Register reg, String info) {
-        // System.out.println(info + "list " + worklist + " remove " + reg);
-        worklist.remove(reg);
+    // Move the register reg to the top of the list of the given type, and set its type to it. info is used to print
+    // this operation as an log.
+    void pushList(Type list, Register reg, String info) {
+        // System.out.println(info + "list " + list + " push " + reg);
+        int id = table.id(reg);
+        if (reg.type == Type.spilling)
+            spillHeap.remove(id);
+        reg.type = list;
+        lists.push(list.ordinal(), id);
+        if (list == Type.spilling)
+            spillHeap.insert(id, reg.priority());
     }
 
-    // Poll the newest register reg from the worklist. info is used to print this operation as an log.
-    Register pollList(Queue<Register> worklist, String info) {
-        Register reg = worklist.poll();
-        // System.out.println(info + "list " + worklist + " poll " + reg);
+    // Poll the first register from the list of the given type. Its type is left unchanged. info is used to print this
+    // operation as an log.
+    Register pollList(Type list, String info) {
+        int id = lists.poll(list.ordinal());
+        Register reg = id == NodeLists.NONE ? null : table.get(id);
+        if (list == Type.spilling && reg != null)
+            spillHeap.remove(id);
+        // System.out.println(info + "list " + list + " poll " + reg);
         return reg;
     }
 
+    // Move the register reg with id up or down the spill heap after its degree changed.
+    void updatePriority(Register reg, int id) {
+        if (reg.type == Type.spilling)
+            spillHeap.update(id, reg.priority());
+    }
+
+    // whether the list of the given type is empty.
+    boolean isEmpty(Type list) {
+        return lists.isEmpty(list.ordinal());
+    }
+
     // Add the register reg in the set. info is used to print this addition as an log.
     void addSet(Set<Register> nodes, Register reg, String info) {
         // System.out.println(info + "set " + nodes + " add " + reg);
@@ -827,22 +1223,17 @@ public class IntfGraphTest {
         nodes.addAll(regs);
     }
 
-    // Add a move to the set of moves. info is used to print this operation as an log.
-    void addSetMove(Set<IntfMove> nodes, IntfMove reg, String info) {
-        // System.out.println(info + "set " + nodes + " add " + reg);
-        nodes.add(reg);
+    // Move a move to the end of the list of the given category, and set its category to it. info is used to print
+    // this operation as an log.
+    void addMove(Category list, IntfMove move, String info) {
+        // System.out.println(info + "list " + list + " add " + move);
+        move.category = list;
+        moveLists.add(list.ordinal(), move.id);
     }
 
-    // Remove a move from the set of moves. info is used to print this operation as an log.
-    void removeSetMove(Set<IntfMove> nodes, IntfMove reg, String info) {
-        // System.out.println(info + "set " + nodes + " remove " + reg);
-        nodes.remove(reg);
-    }
-
-    // Add a set of moves to the set of moves. info is used to print this operation as an log.
-    void addAllSetMove(Set<IntfMove> nodes, Set<IntfMove> regs, String info) {
-        // System.out.println(info + "set " + nodes + " add all " + regs);
-        nodes.addAll(regs);
+    // whether the list of moves of the given category is empty.
+    boolean isEmpty(Category list) {
+        return moveLists.isEmpty(list.ordinal());
     }
 
      // Remove a set of moves from the set of moves. info is used to print this operation as an log.
@@ -851,16 +1242,5 @@ public class IntfGraphTest {
         nodes.removeAll(regs);
     }
 
-     // Add a register reg to the priority queue. info is used to print this operation as an log.
-    void addQueue(PriorityQueue<Register> worklist, Register reg, String info) {
-        // System.out.println(info + "list " + worklist + " add " + reg);
-        worklist.add(reg);
-    }
-
-    // Remove a register reg from the priority queue. info is used to print this operation as an log.
-    void removeQueue(PriorityQueue<Register> worklist, Register reg, String info) {
-        // System.out.println(info + "list " + worklist + " remove " + reg);
-        worklist.remove(reg);
-    }
 
 }
@@ -0,0 +1,65 @@
+package zw494.Optimization;
+
+import java.util.Arrays;
+
+/**
+ * The interference relation of the graph as a packed lower triangular bit matrix over register ids. The pair
+ * (a, b) with a > b is stored at bit a * (a - 1) / 2 + b, so growing the matrix for new ids only appends rows.
+ */
+public class IntfMatrix {
+
+    private long[] bits;
+
+    /**
+     * @param n the number of ids expected. The matrix grows if a larger id is added.
+     */
+    public IntfMatrix(int n) {
+        bits = new long[(int) ((bit(n, 0) + 63) >>> 6) + 1];
+    }
+
+    public IntfMatrix(IntfMatrix copy) {
+        bits = copy.bits.clone();
+    }
+
+    // the position of the pair (a, b), a > b, in the matrix.
+    private static long bit(int a, int b) {
+        return (long) a * (a - 1) / 2 + b;
+    }
+
+    /**
+     * Whether a and b interfere. A register never interferes with itself.
+     */
+    public boolean contains(int a, int b) {
+        if (a == b)
+            return false;
+        long k = a > b ? bit(a, b) : bit(b, a);
+        int w = (int) (k >>> 6);
+        return w < bits.length && (bits[w] & (1L << k)) != 0;
+    }
+
+    /**
+     * Record that a and b interfere.
+     */
+    public void add(int a, int b) {
+        if (a == b)
+            return;
+        long k = a > b ? bit(a, b) : bit(b, a);
+        int w = (int) (k >>> 6);
+        if (w >= bits.length)
+            bits = Arrays.copyOf(bits, Math.max(w + 1, bits.length + (bits.length >> 1)));
+        bits[w] |= 1L << k;
+    }
+
+    /**
+     * Forget that a and b interfere.
+     */
+    public void remove(int a, int b) {
+        if (a == b)
+            return;
+        long k = a > b ? bit(a, b) : bit(b, a);
+        int w = (int) (k >>> 6);
+        if (w < bits.length)
+            bits[w] &= ~(1L << k);
+    }
+
+}
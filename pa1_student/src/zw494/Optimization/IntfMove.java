@@ -15,6 +15,12 @@ public class IntfMove {
     // the category of this move.
     Category category;
 
+    int id; // the index of this move in the interference graph
+
+    // the register ids of x() and y()
+    int xId;
+    int yId;
+
     public IntfMove(Instr i) {
         if (!(IntfGraph.isMoveInstr(i))) {
             throw new Error("Failed to create move intf node");
@@ -0,0 +1,360 @@
+package zw494.Optimization;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import zw494.Assembly.Instr;
+import zw494.Assembly.Register;
+import zw494.Assembly.Register.regNames;
+import zw494.CFG.ControlFlowGraphAssembly;
+
+/**
+ * A linear scan register allocator, the fast alternative to the graph coloring of RegisterAlloc for quick
+ * compiles. It computes the live intervals of all registers from the live variable analysis, and assigns colors
+ * in one pass over the intervals sorted by their start, in the style of second-chance binpacking: an interval can
+ * take a color whose other intervals only live in its lifetime holes.
+ *
+ * Intervals are not split. An interval that does not fit anywhere is spilled everywhere with the same spill code
+ * as RegisterAlloc, and the spill temporaries are allocated in another round. If there are still spills after
+ * maxRounds rounds, the rest of the allocation is done by the graph coloring of RegisterAlloc. Spill slots and
+ * temporaries come from a RegisterAlloc, so both allocators lay out the stack the same way.
+ */
+public class LinearScanAlloc implements RegisterAllocator {
+
+    private final RegisterAlloc frame; // hands out the spill slots and the spill temporaries of the function
+
+    // the number of rounds before graph coloring takes over. Spill temporaries are never spilled, so two rounds are
+    // usually enough.
+    public int maxRounds = 4;
+
+    public int livenessIterations = 0; // nodes visited by the live variable analysis, over all rounds.
+
+    public LinearScanAlloc() {
+        this(new RegisterAlloc());
+    }
+
+    /**
+     * @param frame the allocator whose spill slots and temporaries are used
+     */
+    public LinearScanAlloc(RegisterAlloc frame) {
+        this.frame = frame;
+    }
+
+    @Override
+    public AllocResult allocateWithStats(String function, List<Instr> instrs) {
+
+        AllocResult result = new AllocResult(instrs);
+
+        frame.replaceMemStackOffset(instrs);
+
+        ControlFlowGraphAssembly cfg = new ControlFlowGraphAssembly();
+
+        cfg.createGraph(instrs);
+
+        RegisterTable table = new RegisterTable();
+
+        LiveVarsAnal lva = new LiveVarsAnal(cfg, instrs, table);
+
+        lva.worklistAlgoBackward();
+        livenessIterations += lva.iterations();
+
+        Map<String, regNames> colorMap = new HashMap<>();
+
+        for (int round = 1;; ++round) {
+
+            long start = System.nanoTime();
+
+            lva.countUses();
+
+            LiveInterval[] intervals = buildIntervals(lva);
+
+            List<LiveInterval> unhandled = new ArrayList<>();
+            for (int id = RegisterTable.PRECOLORED; id < intervals.length; ++id) {
+                if (intervals[id] != null)
+                    unhandled.add(intervals[id]);
+            }
+            unhandled.sort((x, y) -> x.start() != y.start() ? x.start() - y.start() : x.id - y.id);
+
+            int[] spilled = scan(lva, intervals, unhandled);
+
+            if (spilled.length == 0) {
+                result.rounds.add(new AllocResult.Round(0, unhandled.size(), 0, System.nanoTime() - start));
+
+                for (LiveInterval it : unhandled)
+                    colorMap.put(table.get(it.id).getArgName(), regNames.values()[it.reg]);
+                break;
+            }
+
+            // spill temps are never evicted, so an instruction with too many of them can keep spilling. Color
+            // what is left of the function instead, which falls back to spilling everything.
+            if (round >= maxRounds) {
+                result.rounds.add(
+                        new AllocResult.Round(spilled.length, unhandled.size(), 0, System.nanoTime() - start));
+                AllocResult colored = frame.allocateWithStats(function, instrs);
+                colored.rounds.addAll(0, result.rounds);
+                colored.linearScanFallback = true;
+                return colored;
+            }
+
+            Set<BasicBlock> patched = IntfGraphTest.rewriteProgram(frame, lva, instrs, spilled,
+                    neighbours(table, unhandled, intervals, spilled));
+
+            result.rounds.add(new AllocResult.Round(spilled.length, unhandled.size(), 0, System.nanoTime() - start));
+
+            lva.respill(spilled, patched);
+            livenessIterations += lva.iterations();
+        }
+
+        AllocationContext context = new AllocationContext(function, colorMap);
+        context.rewrite(instrs);
+        result.selfMoves = AllocationContext.removeSelfMoves(instrs);
+        if (frame.peephole)
+            result.peepholeRemoved = Peephole.optimize(instrs);
+        result.context = context;
+        result.slots = frame.memoryNum;
+        frame.context = context;
+
+        return result;
+    }
+
+    /**
+     * Build the live intervals of all registers, indexed by register id, by walking every block backward from
+     * its live out set. Registers that do not occur have no interval.
+     */
+    LiveInterval[] buildIntervals(LiveVarsAnal lva) {
+
+        LiveInterval[] intervals = new LiveInterval[lva.table.size()];
+
+        // the index of the first instruction of every block
+        int[] first = new int[lva.blocks.size()];
+        int n = 0;
+        for (BasicBlock b : lva.blocks) {
+            first[b.index] = n;
+            n += b.instrs.size();
+        }
+
+        for (int k = lva.blocks.size() - 1; k >= 0; --k) {
+
+            BasicBlock b = lva.blocks.get(k);
+            int from = 2 * first[b.index];
+            int to = 2 * (first[b.index] + b.instrs.size());
+
+            LiveSet live = new LiveSet(lva.out.get(b));
+
+            for (int v = live.nextSetBit(0); v >= 0; v = live.nextSetBit(v + 1))
+                interval(intervals, v).addRange(from, to);
+
+            for (int j = b.instrs.size() - 1; j >= 0; --j) {
+
+                Instr i = b.instrs.get(j);
+                int pos = from + 2 * j;
+
+                for (int d : lva.defIds(i))
+                    interval(intervals, d).setFrom(pos + 1, live.contains(d));
+
+                for (int u : lva.useIds(i))
+                    interval(intervals, u).addRange(from, pos + 1);
+
+                lva.transferInstr(i, live);
+            }
+        }
+
+        for (LiveInterval it : intervals) {
+            if (it == null || RegisterTable.isPrecolored(it.id))
+                continue;
+            Register r = lva.table.get(it.id);
+            it.weight = frame.isSpillTemp(r) ? Double.POSITIVE_INFINITY : r.spill_cost * 2.0 / it.length();
+        }
+
+        return intervals;
+    }
+
+    /**
+     * The names of the registers whose intervals intersect the interval of each spilled register.
+     */
+    private static List<Set<String>> neighbours(RegisterTable table, List<LiveInterval> all, LiveInterval[] intervals,
+            int[] spilled) {
+        List<Set<String>> result = new ArrayList<>();
+        for (int id : spilled) {
+            LiveInterval s = intervals[id];
+            Set<String> names = new HashSet<>();
+            for (LiveInterval it : all) {
+                if (it != s && it.start() < s.end() && s.start() < it.end() && s.intersects(it))
+                    names.add(table.get(it.id).getArgName());
+            }
+            result.add(names);
+        }
+        return result;
+    }
+
+    private static LiveInterval interval(LiveInterval[] intervals, int id) {
+        if (intervals[id] == null)
+            intervals[id] = new LiveInterval(id);
+        return intervals[id];
+    }
+
+    /**
+     * Assign a color to every interval of unhandled, in order.
+     * @return the ids of the registers to spill
+     */
+    int[] scan(LiveVarsAnal lva, LiveInterval[] intervals, List<LiveInterval> unhandled) {
+
+        // the instructions by index, to find the moves that define an interval
+        List<Instr> code = new ArrayList<>();
+        for (BasicBlock b : lva.blocks)
+            code.addAll(b.instrs);
+
+        // the intervals that cover the current position, and those that are in a lifetime hole
+        List<LiveInterval> active = new ArrayList<>();
+        List<LiveInterval> inactive = new ArrayList<>();
+
+        IntList spilled = new IntList();
+
+        // the position up to which each color is free for the current interval; -1 for colors that are not
+        // allocatable
+        int[] freeUntil = new int[regNames.values().length];
+
+        for (LiveInterval current : unhandled) {
+
+            int pos = current.start();
+
+            for (int k = active.size() - 1; k >= 0; --k) {
+                LiveInterval it = active.get(k);
+                if (it.end() <= pos)
+                    active.remove(k);
+                else if (!it.covers(pos))
+                    inactive.add(active.remove(k));
+            }
+            for (int k = inactive.size() - 1; k >= 0; --k) {
+                LiveInterval it = inactive.get(k);
+                if (it.end() <= pos)
+                    inactive.remove(k);
+                else if (it.covers(pos))
+                    active.add(inactive.remove(k));
+            }
+
+            Arrays.fill(freeUntil, -1);
+            for (regNames r : Register.all_regs) {
+                int p = Integer.MAX_VALUE;
+                LiveInterval fixed = intervals[r.ordinal()];
+                if (fixed != null) {
+                    fixed.advance(pos);
+                    int q = fixed.nextIntersection(current);
+                    if (q >= 0)
+                        p = q;
+                }
+                freeUntil[r.ordinal()] = p;
+            }
+            for (LiveInterval it : active)
+                freeUntil[it.reg] = 0;
+            for (LiveInterval it : inactive) {
+                int q = it.nextIntersection(current);
+                if (q >= 0)
+                    freeUntil[it.reg] = Math.min(freeUntil[it.reg], q);
+            }
+
+            int reg = hint(lva, code, intervals, current);
+            if (reg < 0 || freeUntil[reg] < current.end()) {
+                reg = -1;
+                for (regNames r : Register.all_regs) {
+                    if (reg < 0 || freeUntil[r.ordinal()] > freeUntil[reg])
+                        reg = r.ordinal();
+                }
+            }
+
+            if (freeUntil[reg] < current.end()) {
+                reg = evict(intervals, current, active, inactive, spilled);
+                if (reg < 0) {
+                    spilled.add(current.id);
+                    continue;
+                }
+            }
+
+            current.reg = reg;
+            active.add(current);
+        }
+
+        int[] result = new int[spilled.size()];
+        for (int k = 0; k < result.length; ++k)
+            result[k] = spilled.get(k);
+        return result;
+    }
+
+    /**
+     * The color of the source of the move that defines current, if current starts at a move. Giving both ends
+     * the same color makes the move redundant.
+     */
+    private int hint(LiveVarsAnal lva, List<Instr> code, LiveInterval[] intervals, LiveInterval current) {
+        int pos = current.start();
+        if (pos % 2 == 0)
+            return -1;
+
+        Instr i = code.get(pos / 2);
+        if (!IntfGraphTest.isMoveInstr(i) || lva.useIds(i).length != 1)
+            return -1;
+
+        int src = lva.useIds(i)[0];
+        if (RegisterTable.isPrecolored(src))
+            return Register.all_regs.contains(regNames.values()[src]) ? src : -1;
+        return intervals[src].reg;
+    }
+
+    /**
+     * Find the color whose intervals that overlap current are cheaper to spill than current, and spill them.
+     * @return the color for current, or -1 if current should be spilled
+     */
+    private int evict(LiveInterval[] intervals, LiveInterval current, List<LiveInterval> active,
+            List<LiveInterval> inactive, IntList spilled) {
+
+        int best = -1;
+        double bestCost = current.weight;
+
+        for (regNames r : Register.all_regs) {
+
+            LiveInterval fixed = intervals[r.ordinal()];
+            if (fixed != null && fixed.nextIntersection(current) >= 0)
+                continue;
+
+            double cost = 0;
+            for (LiveInterval it : active) {
+                if (it.reg == r.ordinal())
+                    cost += it.weight;
+            }
+            for (LiveInterval it : inactive) {
+                if (it.reg == r.ordinal() && it.nextIntersection(current) >= 0)
+                    cost += it.weight;
+            }
+
+            if (cost < bestCost) {
+                bestCost = cost;
+                best = r.ordinal();
+            }
+        }
+
+        if (best < 0)
+            return -1;
+
+        for (int k = active.size() - 1; k >= 0; --k) {
+            LiveInterval it = active.get(k);
+            if (it.reg == best) {
+                active.remove(k);
+                spilled.add(it.id);
+            }
+        }
+        for (int k = inactive.size() - 1; k >= 0; --k) {
+            LiveInterval it = inactive.get(k);
+            if (it.reg == best && it.nextIntersection(current) >= 0) {
+                inactive.remove(k);
+                spilled.add(it.id);
+            }
+        }
+
+        return best;
+    }
+
+}
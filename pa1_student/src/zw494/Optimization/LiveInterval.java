@@ -0,0 +1,152 @@
+package zw494.Optimization;
+
+/**
+ * The live interval of one register for linear scan allocation: the sorted, disjoint ranges of instruction
+ * positions where it is live. The gaps between the ranges are the lifetime holes of the register, where another
+ * register may use the same color.
+ *
+ * The instruction with index i has two positions: 2i where it reads its operands and 2i + 1 where it writes its
+ * results. A range [from, to) contains the positions from .. to - 1.
+ */
+public class LiveInterval {
+
+    final int id; // the register id
+
+    // the ranges, built backward: the first range (the one with the lowest positions) is the last one in the lists
+    private final IntList froms = new IntList();
+    private final IntList tos = new IntList();
+
+    int reg = -1; // the ordinal of the assigned regNames, or -1
+    double weight; // the cost of spilling this interval
+
+    // the index of the range that covers or follows the positions being scanned; only moves forward
+    private int cursor;
+
+    LiveInterval(int id) {
+        this.id = id;
+    }
+
+    /**
+     * Add the range [from, to). Ranges are added in decreasing order of positions, so the new range either
+     * overlaps or touches the first range or comes before it.
+     */
+    void addRange(int from, int to) {
+        int k = froms.size() - 1;
+        if (k >= 0 && froms.get(k) <= to) {
+            froms.set(k, Math.min(froms.get(k), from));
+            tos.set(k, Math.max(tos.get(k), to));
+        } else {
+            froms.add(from);
+            tos.add(to);
+        }
+    }
+
+    /**
+     * Start the first range at the definition at pos. If the register is not live after pos, the definition is
+     * dead and only occupies pos itself.
+     */
+    void setFrom(int pos, boolean live) {
+        int k = froms.size() - 1;
+        if (live && k >= 0)
+            froms.set(k, pos);
+        else
+            addRange(pos, pos + 1);
+    }
+
+    boolean isEmpty() {
+        return froms.isEmpty();
+    }
+
+    int start() {
+        return froms.get(froms.size() - 1);
+    }
+
+    int end() {
+        return tos.get(0);
+    }
+
+    // the number of ranges.
+    int ranges() {
+        return froms.size();
+    }
+
+    // the range with index k in increasing order of positions.
+    int from(int k) {
+        return froms.get(froms.size() - 1 - k);
+    }
+
+    int to(int k) {
+        return tos.get(tos.size() - 1 - k);
+    }
+
+    // the number of positions covered by this interval.
+    int length() {
+        int n = 0;
+        for (int k = 0; k < froms.size(); ++k)
+            n += tos.get(k) - froms.get(k);
+        return n;
+    }
+
+    /**
+     * Skip the ranges that end at or before pos. The scan positions of linear scan only grow, so they are never
+     * looked at again.
+     */
+    void advance(int pos) {
+        while (cursor < ranges() && to(cursor) <= pos)
+            cursor++;
+    }
+
+    /**
+     * Whether the interval covers pos. pos must not be before the last position given to advance.
+     */
+    boolean covers(int pos) {
+        advance(pos);
+        return cursor < ranges() && from(cursor) <= pos;
+    }
+
+    /**
+     * The first position at or after the current scan position where this interval and other are both live, or
+     * -1 if there is none.
+     */
+    int nextIntersection(LiveInterval other) {
+        int a = cursor;
+        int b = other.cursor;
+        while (a < ranges() && b < other.ranges()) {
+            int from = Math.max(from(a), other.from(b));
+            if (from < to(a) && from < other.to(b))
+                return from;
+            if (to(a) <= other.to(b))
+                a++;
+            else
+                b++;
+        }
+        return -1;
+    }
+
+    /**
+     * Whether this interval and other are live at the same position, over their whole length.
+     */
+    boolean intersects(LiveInterval other) {
+        int a = 0;
+        int b = 0;
+        while (a < ranges() && b < other.ranges()) {
+            int from = Math.max(from(a), other.from(b));
+            if (from < to(a) && from < other.to(b))
+                return true;
+            if (to(a) <= other.to(b))
+                a++;
+            else
+                b++;
+        }
+        return false;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int k = 0; k < ranges(); ++k)
+            sb.append('[').append(from(k)).append(',').append(to(k)).append(')');
+        return id + ":" + sb;
+    }
+
+}
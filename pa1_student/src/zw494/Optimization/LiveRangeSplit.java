@@ -0,0 +1,199 @@
+package zw494.Optimization;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import zw494.Assembly.BinOp;
+import zw494.Assembly.Instr;
+import zw494.Assembly.Register;
+import zw494.Assembly.UnOp;
+import zw494.Assembly.BinOp.OpType;
+import zw494.Assembly.UnOp.UnOpType;
+
+/**
+ * The splitting of live ranges around the instructions that clobber fixed registers: callq, which defines all
+ * caller saved registers, and mulq, imulq and idivq, which define rax and rdx. A register t that lives across such
+ * an instruction is copied into a new register t' right before it and back right after it, so that only t'
+ * conflicts with the clobbered registers.
+ *
+ * Splitting is an alternative to spilling: it is only done for the registers that coloring chose to spill, when
+ * the copies are cheaper than the loads and stores of spilling. t then colors as if the instructions were not
+ * there, and t' only lives across one instruction, so if it does not get a color it is spilled with one store and
+ * one load next to the instruction instead of t being spilled at all of its uses and defs. Copies that were not
+ * needed are removed again by coalescing.
+ */
+public class LiveRangeSplit {
+
+    /**
+     * The spilled registers that are cheaper to split than to spill. Registers created by an earlier split, or
+     * split before, are never split again, so splitting ends.
+     * @param ra the allocator that created the registers
+     * @param lva the live variable analysis of the instructions, with the spill costs of countUses
+     * @param spilled the ids of the registers that coloring spilled
+     * @return the ids of the registers to split
+     */
+    public static int[] candidates(RegisterAlloc ra, LiveVarsAnal lva, int[] spilled) {
+
+        RegisterTable table = lva.table;
+
+        // the registers to split, by id
+        boolean[] split = new boolean[table.size()];
+
+        // the cost of splitting each candidate: two copies at every instruction it lives across
+        double[] cost = new double[table.size()];
+
+        // the most registers at least as costly to spill that live together with each candidate, away from the
+        // instructions it lives across. The cheaper registers are spilled first.
+        int[] pressure = new int[table.size()];
+
+        boolean any = false;
+        for (int t : spilled) {
+            Register r = table.get(t);
+            if (RegisterTable.isPrecolored(t) || ra.isSpillTemp(r) || ra.isSplit(r) || lva.rematDef(t) != null)
+                continue;
+            split[t] = true;
+            any = true;
+        }
+        if (!any)
+            return new int[0];
+
+        for (BasicBlock b : lva.blocks) {
+            LiveSet live = new LiveSet(lva.out.get(b));
+            for (int k = b.instrs.size() - 1; k >= 0; --k) {
+                Instr i = b.instrs.get(k);
+                if (isClobber(i)) {
+                    for (int t : crossing(lva, i, live, split))
+                        cost[t] += 2 * Math.pow(10, b.loopDepth);
+                } else {
+                    for (int t = live.nextSetBit(RegisterTable.PRECOLORED); t >= 0; t = live.nextSetBit(t + 1)) {
+                        if (split[t])
+                            pressure[t] = Math.max(pressure[t], competing(table, live, t));
+                    }
+                }
+                lva.transferInstr(i, live);
+            }
+        }
+
+        // a register that does not fit in the registers away from the calls and divisions either would be spilled
+        // again after the split, and the copies would only add to its spill code
+        IntList result = new IntList();
+        for (int t : spilled) {
+            if (split[t] && cost[t] > 0 && cost[t] < table.get(t).spill_cost
+                    && pressure[t] <= Register.all_regs.size())
+                result.add(t);
+        }
+        return toArray(result);
+    }
+
+    /**
+     * Split the registers ids around every instruction they live across that clobbers fixed registers.
+     * @param ra the allocator that hands out the new registers
+     * @param lva the live variable analysis of instrs
+     * @param instrs the instructions, rewritten in place
+     * @param ids the registers to split, from candidates
+     * @return the number of copies inserted
+     */
+    public static int split(RegisterAlloc ra, LiveVarsAnal lva, List<Instr> instrs, int[] ids) {
+
+        RegisterTable table = lva.table;
+
+        boolean[] split = new boolean[table.size()];
+        for (int t : ids)
+            split[t] = true;
+
+        int copies = 0;
+
+        for (BasicBlock b : lva.blocks) {
+
+            // the instructions of the block, built backward
+            List<Instr> code = new ArrayList<>();
+
+            LiveSet live = new LiveSet(lva.out.get(b));
+
+            for (int k = b.instrs.size() - 1; k >= 0; --k) {
+
+                Instr i = b.instrs.get(k);
+
+                List<Instr> before = new ArrayList<>();
+
+                for (int t : crossing(lva, i, live, split)) {
+                    Register r = table.get(t);
+                    Register r0 = ra.splitTemp(r);
+                    before.add(copy(i, r.copy(), r0));
+                    code.add(copy(i, r0.copy(), r.copy()));
+                    copies += 2;
+                }
+
+                code.add(i);
+                for (int j = before.size() - 1; j >= 0; --j)
+                    code.add(before.get(j));
+
+                lva.transferInstr(i, live);
+            }
+
+            List<Instr> forward = new ArrayList<>(code.size());
+            for (int k = code.size() - 1; k >= 0; --k)
+                forward.add(code.get(k));
+            b.instrs = forward;
+        }
+
+        instrs.clear();
+        for (BasicBlock b : lva.blocks)
+            instrs.addAll(b.instrs);
+
+        // give the new registers their ids, so that the spill code of the same round can index by them
+        for (Instr i : instrs) {
+            lva.useIds(i);
+            lva.defIds(i);
+        }
+
+        return copies;
+    }
+
+    // the number of registers of live that are at least as costly to spill as t, t included.
+    private static int competing(RegisterTable table, LiveSet live, int t) {
+        double c = table.get(t).spill_cost;
+        int n = 0;
+        for (int u = live.nextSetBit(0); u >= 0; u = live.nextSetBit(u + 1)) {
+            if (RegisterTable.isPrecolored(u) || table.get(u).spill_cost >= c)
+                n++;
+        }
+        return n;
+    }
+
+    // the registers of which that live across i, given the registers live after i.
+    private static int[] crossing(LiveVarsAnal lva, Instr i, LiveSet live, boolean[] of) {
+        if (!isClobber(i))
+            return new int[0];
+        int[] def = lva.defIds(i);
+        IntList result = new IntList();
+        for (int t = live.nextSetBit(RegisterTable.PRECOLORED); t >= 0; t = live.nextSetBit(t + 1)) {
+            if (t < of.length && of[t] && !LiveVarsAnal.contains(def, t))
+                result.add(t);
+        }
+        return toArray(result);
+    }
+
+    private static int[] toArray(IntList l) {
+        int[] ids = new int[l.size()];
+        for (int k = 0; k < ids.length; ++k)
+            ids[k] = l.get(k);
+        return ids;
+    }
+
+    // whether i defines fixed registers that other registers live across it must avoid.
+    static boolean isClobber(Instr i) {
+        if (!(i instanceof UnOp))
+            return false;
+        UnOpType op = ((UnOp) i).op;
+        return op == UnOpType.callq || op == UnOpType.mulq || op == UnOpType.imulq || op == UnOpType.idivq;
+    }
+
+    // a copy of src into dest next to the instruction at.
+    private static Instr copy(Instr at, Register src, Register dest) {
+        Instr move = new BinOp(OpType.movq, src, dest);
+        move.stackOffset = at.stackOffset;
+        return move;
+    }
+
+}
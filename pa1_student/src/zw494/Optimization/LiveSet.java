@@ -0,0 +1,134 @@
+package zw494.Optimization;
+
+import java.util.Arrays;
+
+/**
+ * A set of register ids (see RegisterTable) stored as a bit vector. All updates are done in place, word by word.
+ */
+public class LiveSet {
+
+    private long[] words;
+
+    /**
+     * Create an empty set.
+     *
+     * @param capacity the number of ids expected. The set grows if a larger id is added.
+     */
+    public LiveSet(int capacity) {
+        words = new long[(capacity + 63) >>> 6];
+    }
+
+    // a copy of the set s.
+    public LiveSet(LiveSet s) {
+        words = s.words.clone();
+    }
+
+    public boolean contains(int id) {
+        int w = id >>> 6;
+        return w < words.length && (words[w] & (1L << id)) != 0;
+    }
+
+    public void add(int id) {
+        int w = id >>> 6;
+        if (w >= words.length)
+            words = Arrays.copyOf(words, Math.max(w + 1, words.length * 2));
+        words[w] |= 1L << id;
+    }
+
+    public void remove(int id) {
+        int w = id >>> 6;
+        if (w < words.length)
+            words[w] &= ~(1L << id);
+    }
+
+    public void clear() {
+        Arrays.fill(words, 0L);
+    }
+
+    /**
+     * this = this + s
+     */
+    public void addAll(LiveSet s) {
+        if (s.words.length > words.length)
+            words = Arrays.copyOf(words, s.words.length);
+        for (int w = 0; w < s.words.length; ++w)
+            words[w] |= s.words[w];
+    }
+
+    /**
+     * this = this - s
+     */
+    public void removeAll(LiveSet s) {
+        int n = Math.min(words.length, s.words.length);
+        for (int w = 0; w < n; ++w)
+            words[w] &= ~s.words[w];
+    }
+
+    /**
+     * Whether the two sets contain the same ids. The sets may have different word lengths.
+     */
+    public boolean sameAs(LiveSet s) {
+        long[] a = words;
+        long[] b = s.words;
+        int n = Math.min(a.length, b.length);
+        for (int w = 0; w < n; ++w) {
+            if (a[w] != b[w])
+                return false;
+        }
+        for (int w = n; w < a.length; ++w) {
+            if (a[w] != 0)
+                return false;
+        }
+        for (int w = n; w < b.length; ++w) {
+            if (b[w] != 0)
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * The smallest id in the set that is at least from, or -1 if there is none. Iterate the set with
+     * for (int id = s.nextSetBit(0); id >= 0; id = s.nextSetBit(id + 1))
+     */
+    public int nextSetBit(int from) {
+        int w = from >>> 6;
+        if (w >= words.length)
+            return -1;
+        long word = words[w] & (-1L << from);
+        while (true) {
+            if (word != 0)
+                return (w << 6) + Long.numberOfTrailingZeros(word);
+            if (++w == words.length)
+                return -1;
+            word = words[w];
+        }
+    }
+
+    public boolean isEmpty() {
+        for (long word : words) {
+            if (word != 0)
+                return false;
+        }
+        return true;
+    }
+
+    // the number of ids in the set.
+    public int size() {
+        int n = 0;
+        for (long word : words)
+            n += Long.bitCount(word);
+        return n;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("{");
+        for (int id = nextSetBit(0); id >= 0; id = nextSetBit(id + 1)) {
+            if (sb.length() > 1)
+                sb.append(", ");
+            sb.append(id);
+        }
+        return sb.append("}").toString();
+    }
+
+}
@@ -1,13 +1,19 @@
 package zw494.Optimization;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.function.ToIntFunction;
 
 import zw494.Assembly.Arg;
 import zw494.Assembly.BinOp;
+import zw494.Assembly.Imm;
 import zw494.Assembly.Instr;
 import zw494.Assembly.Mem;
 import zw494.Assembly.MiscOp;
@@ -18,33 +24,116 @@ import zw494.CFG.ControlFlowGraphMaster;
 
 /**
  * Live variable analysis. The first step of register allocation.
+ * The analysis runs on basic blocks: the in and out sets are kept per block, as bit vectors indexed by the register
+ * ids of table. The liveness of single instructions is recovered by a backward walk over a block from its out set.
  */
-public class LiveVarsAnal extends DataFlowAnal<Instr, Set<Register>> {
+public class LiveVarsAnal extends DataFlowAnal<BasicBlock, LiveSet> {
 
     List<Instr> instrs; // the set of instructions to operate on.
 
+    List<BasicBlock> blocks; // the basic blocks of instrs, in program order.
+
+    RegisterTable table; // the ids of all registers of this function.
+
+    // the cached use and def sets. Instructions are keyed by identity since rewriting changes their operands.
+    private final Map<Instr, int[]> useIds = new IdentityHashMap<>();
+    private final Map<Instr, int[]> defIds = new IdentityHashMap<>();
+
+    // the cost of recomputing a rematerialized register at a use, relative to loading it from its stack slot. A move
+    // of an immediate, or a leaq, needs no memory access and has about a quarter of the latency of a load.
+    static final double REMAT_COST = 0.25;
+
+    // the definition of every register that can be recomputed at its uses instead of being spilled, by id; null
+    // for the other registers. Found by countUses.
+    private Instr[] rematDefs = new Instr[0];
+
+    // the buffer that computeUse and computeDef collect ids into.
+    private int[] buf = new int[8];
+    private int size;
+
     boolean checked = false;
     boolean containsRax = false;
     boolean containsRdx = false;
 
-    public LiveVarsAnal(ControlFlowGraphMaster<Instr> cfg, List<Instr> w) {
-        this.cfg = cfg;
+    public LiveVarsAnal(ControlFlowGraphMaster<Instr> cfg, List<Instr> w, RegisterTable table) {
         this.instrs = w;
-        this.w = new LinkedList<>();
-        this.w.addAll(w);
+        this.table = table;
+        this.blocks = BasicBlock.build(cfg, w);
+        BasicBlock.computeLoopDepths(blocks);
+        seedWorklist(blocks, true);
         this.in = new HashMap<>();
         this.out = new HashMap<>();
 
-        for (Instr ins : w) {
-            in.put(ins, new HashSet<>());
-            out.put(ins, new HashSet<>());
+        for (BasicBlock b : blocks) {
+            b.summarize(this);
+            in.put(b, new LiveSet(table.size()));
+            out.put(b, new LiveSet(table.size()));
         }
     }
 
-    public Set<Register> meet(List<Set<Register>> varslist) {
-        Set<Register> result = new HashSet<>();
+    /**
+     * Update the analysis after rewriteProgram replaced the registers in spilled by spill temporaries, instead of
+     * analysing the function again. The spilled registers no longer occur anywhere, and the temporaries never live
+     * across a block boundary, so only the blocks that got spill code have new gen and kill sets. The old solution
+     * without the spilled registers is below the new one, so the worklist only needs to start from those blocks.
+     *
+     * @param spilled the ids of the spilled registers
+     * @param patched the blocks that got spill code
+     * @return the patched blocks and the blocks whose live out set changed
+     */
+    public Set<BasicBlock> respill(int[] spilled, Set<BasicBlock> patched) {
+        visits = 0;
+        changes = 0;
+
+        LiveSet[] before = new LiveSet[blocks.size()];
+
+        for (BasicBlock b : blocks) {
+            for (int s : spilled) {
+                in.get(b).remove(s);
+                out.get(b).remove(s);
+            }
+            before[b.index] = out.get(b);
+        }
 
-        for (Set<Register> s : varslist) {
+        List<BasicBlock> seed = new ArrayList<>(patched);
+        // a backward problem: start from the last block
+        seed.sort((x, y) -> y.index - x.index);
+
+        for (BasicBlock b : seed) {
+            b.summarize(this);
+            w.add(b);
+        }
+
+        worklistAlgoBackward();
+
+        Set<BasicBlock> changed = new LinkedHashSet<>(patched);
+        for (BasicBlock b : blocks) {
+            if (out.get(b) != before[b.index] && !out.get(b).sameAs(before[b.index]))
+                changed.add(b);
+        }
+        return changed;
+    }
+
+    // the worklist indexes blocks by the index BasicBlock.build gave them.
+    @Override
+    protected ToIntFunction<BasicBlock> nodeIds(List<BasicBlock> nodes) {
+        return b -> b.index;
+    }
+
+    @Override
+    public List<BasicBlock> children(BasicBlock b) {
+        return b.succs;
+    }
+
+    @Override
+    public List<BasicBlock> parents(BasicBlock b) {
+        return b.preds;
+    }
+
+    public LiveSet meet(List<LiveSet> varslist) {
+        LiveSet result = new LiveSet(table.size());
+
+        for (LiveSet s : varslist) {
             result.addAll(s);
         }
 
@@ -52,54 +141,229 @@ public class LiveVarsAnal extends DataFlowAnal<Instr, Set<Register>> {
 
     }
 
-    public Set<Register> transfer(Instr i, Set<Register> vars) {
-        Set<Register> u = use(i);
-        Set<Register> d = def(i);
+    // in = gen + (out - kill)
+    public LiveSet transfer(BasicBlock b, LiveSet vars) {
+        LiveSet temp = new LiveSet(vars);
 
-        Set<Register> temp = new HashSet<>();
-        temp.addAll(vars);
-        temp.removeAll(d);
-        temp.addAll(u);
+        temp.removeAll(b.kill);
+        temp.addAll(b.gen);
 
         return temp;
     }
 
-    public boolean hasSameElt(Set<Register> s1, Set<Register> s2) {
-        Set<Register> temp = new HashSet<>();
-        temp.addAll(s1);
-        temp.removeAll(s2);
-        if (temp.size() != 0)
-            return false;
-        temp.addAll(s2);
-        temp.removeAll(s1);
-        if (temp.size() != 0)
-            return false;
-        return true;
+    /**
+     * Step the live set backward over the instruction i: live = use(i) + (live - def(i)).
+     */
+    public void transferInstr(Instr i, LiveSet live) {
+        for (int d : defIds(i))
+            live.remove(d);
+        for (int u : useIds(i))
+            live.add(u);
+    }
+
+    public boolean hasSameElt(LiveSet s1, LiveSet s2) {
+        return s1.sameAs(s2);
+    }
+
+    /**
+     * The ids of the registers used by the instruction i. The result is computed once and cached until i is
+     * rewritten by useReplace or defReplace. It must not be modified.
+     */
+    public int[] useIds(Instr i) {
+        int[] ids = useIds.get(i);
+        if (ids == null) {
+            ids = computeUse(i);
+            useIds.put(i, ids);
+        }
+        return ids;
+    }
+
+    /**
+     * The ids of the registers defined by the instruction i. Cached the same way as useIds.
+     */
+    public int[] defIds(Instr i) {
+        int[] ids = defIds.get(i);
+        if (ids == null) {
+            ids = computeDef(i);
+            defIds.put(i, ids);
+        }
+        return ids;
+    }
+
+    // drop the cached use and def sets of i after it is rewritten.
+    public void invalidate(Instr i) {
+        useIds.remove(i);
+        defIds.remove(i);
     }
 
     // the use set of an instruction i.
     public Set<Register> use(Instr i) {
+        return registers(useIds(i));
+    }
+
+    // the def set of the instruction i.
+    public Set<Register> def(Instr i) {
+        return registers(defIds(i));
+    }
+
+    // whether the id is in ids.
+    static boolean contains(int[] ids, int id) {
+        for (int k : ids) {
+            if (k == id)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Count the uses and defs of every register into Register.use_num, and weigh them by 10^(loop depth) of their
+     * block into Register.spill_cost. Each occurrence of a register in an operand counts once, so the counts only
+     * depend on the instructions, not on how often the analysis ran.
+     */
+    public void countUses() {
+        int[] counts = new int[table.size()];
+        double[] costs = new double[table.size()];
+        double[] useCosts = new double[table.size()];
+
+        for (BasicBlock b : blocks) {
+            double weight = Math.pow(10, b.loopDepth);
+            for (Instr i : b.instrs) {
+                for (int u : useIds(i)) {
+                    counts[u]++;
+                    costs[u] += weight;
+                    useCosts[u] += weight;
+                }
+                for (int d : defIds(i)) {
+                    counts[d]++;
+                    costs[d] += weight;
+                }
+            }
+        }
+
+        findRemat();
+
+        // a rematerialized register needs no store at its defs, and one recomputing instruction instead of a load
+        // at each of its uses
+        for (int id = 0; id < counts.length; ++id) {
+            table.get(id).use_num = counts[id];
+            table.get(id).spill_cost = rematDefs[id] != null ? useCosts[id] * REMAT_COST : costs[id];
+        }
+    }
+
+    /**
+     * The definition of the register with the given id if the register can be rematerialized: recomputed at each
+     * of its uses instead of being stored to and loaded from the stack. Otherwise null.
+     */
+    public Instr rematDef(int id) {
+        return id < rematDefs.length ? rematDefs[id] : null;
+    }
+
+    /**
+     * Find the registers that can be rematerialized. Every definition of such a register moves the same
+     * immediate into it, or computes the same address from %rsp by leaq; for leaq, all of its uses are at the
+     * same stack offset as its definitions, so the address is the same there. It must also not be live into the
+     * function.
+     */
+    private void findRemat() {
+        rematDefs = new Instr[table.size()];
+        boolean[] not = new boolean[table.size()];
+
+        for (int id = 0; id < RegisterTable.PRECOLORED; ++id)
+            not[id] = true;
+
+        for (BasicBlock b : blocks) {
+            for (Instr i : b.instrs) {
+                for (int d : defIds(i)) {
+                    if (!isRematDef(i))
+                        not[d] = true;
+                    else if (rematDefs[d] == null)
+                        rematDefs[d] = i;
+                    else if (!sameRemat(rematDefs[d], i))
+                        not[d] = true;
+                }
+            }
+        }
+
+        for (BasicBlock b : blocks) {
+            for (Instr i : b.instrs) {
+                for (int u : useIds(i)) {
+                    Instr d = rematDefs[u];
+                    if (d != null && ((BinOp) d).op == OpType.leaq && d.stackOffset != i.stackOffset)
+                        not[u] = true;
+                }
+            }
+        }
+
+        if (!blocks.isEmpty()) {
+            LiveSet entry = in.get(blocks.get(0));
+            for (int id = entry.nextSetBit(0); id >= 0; id = entry.nextSetBit(id + 1))
+                not[id] = true;
+        }
+
+        for (int id = 0; id < not.length; ++id) {
+            if (not[id])
+                rematDefs[id] = null;
+        }
+    }
+
+    // whether i moves an immediate into a register, or computes an address from %rsp into a register.
+    private static boolean isRematDef(Instr i) {
+        if (!(i instanceof BinOp) || !(((BinOp) i).arg2 instanceof Register))
+            return false;
+        BinOp j = (BinOp) i;
+        if (j.op == OpType.movq)
+            return j.arg1 instanceof Imm;
+        if (j.op == OpType.leaq && j.arg1 instanceof Mem) {
+            Mem m = (Mem) j.arg1;
+            return m.r2 == null && m.r1.getResolvedName() == Register.regNames.rsp;
+        }
+        return false;
+    }
+
+    // whether the rematerializable definitions a and b compute the same value.
+    private static boolean sameRemat(Instr a, Instr b) {
+        BinOp x = (BinOp) a;
+        BinOp y = (BinOp) b;
+        if (x.op != y.op)
+            return false;
+        if (x.op == OpType.movq)
+            return ((Imm) x.arg1).value() == ((Imm) y.arg1).value();
+        return x.stackOffset == y.stackOffset && x.arg1.toString().equals(y.arg1.toString());
+    }
+
+    private Set<Register> registers(int[] ids) {
         Set<Register> result = new HashSet<>();
+        for (int id : ids)
+            result.add(table.get(id));
+        return result;
+    }
+
+    private int[] computeUse(Instr i) {
+        // the scan fills the buffer through defIds, so it has to run before this instruction starts using it
+        if (i instanceof MiscOp && ((MiscOp) i).op == MiscOp.OpType.ret)
+            checkReturnRegs();
+
+        size = 0;
 
         if (i instanceof BinOp) {
             BinOp j = (BinOp) i;
-            addVar(result, j.arg1, true);
+            addVar(j.arg1, true);
             if (j.op != BinOp.OpType.movq && j.op != BinOp.OpType.leaq)
-                addVar(result, j.arg2, true);
+                addVar(j.arg2, true);
             else if (j.arg2 instanceof Mem) {
-                addVar(result, j.arg2, true);
+                addVar(j.arg2, true);
             }
         } else if (i instanceof UnOp) {
             UnOp j = (UnOp) i;
-            addVar(result, j.arg1, true);
+            addVar(j.arg1, true);
             switch (j.op) {
                 case mulq:
                 case imulq:
-                    addVar(result, new Register(Register.regNames.rax), false);
+                    addId(Register.regNames.rax);
                     break;
                 case idivq:
-                    addVar(result, new Register(Register.regNames.rdx), false);
-                    addVar(result, new Register(Register.regNames.rax), false);
+                    addId(Register.regNames.rdx);
+                    addId(Register.regNames.rax);
                     break;
                 default:
 
@@ -108,54 +372,57 @@ public class LiveVarsAnal extends DataFlowAnal<Instr, Set<Register>> {
             MiscOp j = (MiscOp) i;
             if (j.op == MiscOp.OpType.ret) {
                 // uses all callee saved registers
-                addVar(result, new Register(Register.regNames.rbx), false);
-                // addVar(result, new Register(Register.regNames.rbp), false);
-                addVar(result, new Register(Register.regNames.r12), false);
-                addVar(result, new Register(Register.regNames.r13), false);
-                addVar(result, new Register(Register.regNames.r14), false);
-                addVar(result, new Register(Register.regNames.r15), false);
-
-                if (!checked) {
-                    checked = true;
-                    // uses rax only if someone defs it
-                    for (Instr k : instrs) {
-                        if (def(k).contains(new Register(Register.regNames.rax))) {
-                            containsRax = true;
-                            break;
-                        }
-                    }
-                    // uses rdx only if someone defs it
-
-                    for (Instr k : instrs) {
-                        if (def(k).contains(new Register(Register.regNames.rdx))) {
-                            containsRdx = true;
-                            break;
-                        }
-                    }
-                }
+                addId(Register.regNames.rbx);
+                // addId(Register.regNames.rbp);
+                addId(Register.regNames.r12);
+                addId(Register.regNames.r13);
+                addId(Register.regNames.r14);
+                addId(Register.regNames.r15);
 
                 if (containsRax) {
-                    addVar(result, new Register(Register.regNames.rax), false);
+                    addId(Register.regNames.rax);
                 }
 
                 if (containsRdx) {
-                    addVar(result, new Register(Register.regNames.rdx), false);
+                    addId(Register.regNames.rdx);
                 }
 
             }
         }
 
-        return result;
+        return Arrays.copyOf(buf, size);
     }
 
-    // the def set of the instruction i.
-    public Set<Register> def(Instr i) {
-        Set<Register> result = new HashSet<>();
+    // find out whether the function returns values in rax and rdx.
+    private void checkReturnRegs() {
+        if (checked)
+            return;
+        checked = true;
+
+        // uses rax only if someone defs it
+        for (Instr k : instrs) {
+            if (contains(defIds(k), Register.regNames.rax.ordinal())) {
+                containsRax = true;
+                break;
+            }
+        }
+        // uses rdx only if someone defs it
+
+        for (Instr k : instrs) {
+            if (contains(defIds(k), Register.regNames.rdx.ordinal())) {
+                containsRdx = true;
+                break;
+            }
+        }
+    }
+
+    private int[] computeDef(Instr i) {
+        size = 0;
 
         if (i instanceof BinOp) {
             BinOp j = (BinOp) i;
             if (j.op != OpType.cmpq && j.op != OpType.testq)
-                addVar(result, j.arg2, false);
+                addVar(j.arg2, false);
         } else if (i instanceof UnOp) {
             UnOp j = (UnOp) i;
             switch (j.op) {
@@ -163,55 +430,68 @@ public class LiveVarsAnal extends DataFlowAnal<Instr, Set<Register>> {
                 case notq:
                 case incq:
                 case decq:
-                    addVar(result, j.arg1, false);
+                    addVar(j.arg1, false);
                     break;
                 case mulq:
                 case imulq:
                 case idivq:
-                    addVar(result, new Register(Register.regNames.rax), false);
-                    addVar(result, new Register(Register.regNames.rdx), false);
+                    addId(Register.regNames.rax);
+                    addId(Register.regNames.rdx);
                     break;
                 case callq:
                     // defines all caller saved registers
-                    addVar(result, new Register(Register.regNames.rdi), false);
-                    addVar(result, new Register(Register.regNames.rsi), false);
-                    addVar(result, new Register(Register.regNames.rdx), false);
-                    addVar(result, new Register(Register.regNames.rcx), false);
-                    addVar(result, new Register(Register.regNames.rax), false);
-                    addVar(result, new Register(Register.regNames.r8), false);
-                    addVar(result, new Register(Register.regNames.r9), false);
-                    addVar(result, new Register(Register.regNames.r10), false);
-                    addVar(result, new Register(Register.regNames.r11), false);
+                    addId(Register.regNames.rdi);
+                    addId(Register.regNames.rsi);
+                    addId(Register.regNames.rdx);
+                    addId(Register.regNames.rcx);
+                    addId(Register.regNames.rax);
+                    addId(Register.regNames.r8);
+                    addId(Register.regNames.r9);
+                    addId(Register.regNames.r10);
+                    addId(Register.regNames.r11);
                     break;
                 default:
                     break;
             }
         }
 
-        return result;
+        return Arrays.copyOf(buf, size);
     }
 
-    // helper to add registers in a to the result set.
-    public void addVar(Set<Register> result, Arg a, Boolean is_use) {
+    // helper to add the ids of registers in a to the result buffer.
+    private void addVar(Arg a, boolean is_use) {
         if (a instanceof Register) {
-            Register b = (Register) a;
-            b.use_num++;
-            result.add(b);
+            addId(table.id((Register) a));
 
         } else if (a instanceof Mem && is_use) {
             Mem b = (Mem) a;
-            b.r1.use_num++;
-            result.add(b.r1);
+            addId(table.id(b.r1));
             if (b.r2 != null) {
-                b.r2.use_num++;
-                result.add(b.r2);
+                addId(table.id(b.r2));
             }
         }
     }
 
+    private void addId(Register.regNames name) {
+        addId(name.ordinal());
+    }
+
+    // add id to the result buffer unless it is already there.
+    private void addId(int id) {
+        for (int k = 0; k < size; ++k) {
+            if (buf[k] == id)
+                return;
+        }
+        if (size == buf.length)
+            buf = Arrays.copyOf(buf, size * 2);
+        buf[size++] = id;
+    }
+
     // replace occurrences of r in i to rn for use set.
     public void useReplace(Instr i, Register r, Register rn) {
 
+        invalidate(i);
+
         if (i instanceof BinOp) {
             BinOp j = (BinOp) i;
             if (r.equals(j.arg1)) {
@@ -254,6 +534,8 @@ public class LiveVarsAnal extends DataFlowAnal<Instr, Set<Register>> {
     // replace occurrences of r in i to rn in def set.
     public void defReplace(Instr i, Register r, Register rn) {
 
+        invalidate(i);
+
         if (i instanceof BinOp) {
             BinOp j = (BinOp) i;
             if (j.op != OpType.cmpq && j.op != OpType.testq) {
@@ -295,7 +577,7 @@ public class LiveVarsAnal extends DataFlowAnal<Instr, Set<Register>> {
     }
 
     @Override
-    public void cond(List<Instr> lst) {
+    public void cond(List<BasicBlock> lst) {
         return;
     }
 
@@ -0,0 +1,140 @@
+package zw494.Optimization;
+
+import java.util.Arrays;
+
+/**
+ * The worklists of the coloring algorithm, kept as intrusive doubly linked lists over integer ids: register ids for
+ * the lists of nodes, and move ids for the lists of moves. A node is in at most one list at a time, so adding it to
+ * a list takes it out of the one it was in. Adding, removing and moving a node all take constant time.
+ */
+public class NodeLists {
+
+    static final int NONE = -1;
+
+    // links of every node, and the list it is in (NONE if it is in no list)
+    private int[] next;
+    private int[] prev;
+    private int[] owner;
+
+    // first node, last node and length of every list
+    private final int[] head;
+    private final int[] tail;
+    private final int[] size;
+
+    /**
+     * @param nodes the number of node ids expected. Larger ids are accepted as well.
+     * @param lists the number of lists
+     */
+    public NodeLists(int nodes, int lists) {
+        next = new int[Math.max(nodes, 1)];
+        prev = new int[next.length];
+        owner = new int[next.length];
+        Arrays.fill(owner, NONE);
+
+        head = new int[lists];
+        tail = new int[lists];
+        size = new int[lists];
+        Arrays.fill(head, NONE);
+        Arrays.fill(tail, NONE);
+    }
+
+    /**
+     * Append the node n to the end of list.
+     */
+    public void add(int list, int n) {
+        remove(n);
+        owner[n] = list;
+        next[n] = NONE;
+        prev[n] = tail[list];
+        if (tail[list] == NONE)
+            head[list] = n;
+        else
+            next[tail[list]] = n;
+        tail[list] = n;
+        size[list]++;
+    }
+
+    /**
+     * Put the node n at the front of list, so that the list can be used as a stack.
+     */
+    public void push(int list, int n) {
+        remove(n);
+        owner[n] = list;
+        prev[n] = NONE;
+        next[n] = head[list];
+        if (head[list] == NONE)
+            tail[list] = n;
+        else
+            prev[head[list]] = n;
+        head[list] = n;
+        size[list]++;
+    }
+
+    /**
+     * Take the node n out of the list it is in, if any.
+     */
+    public void remove(int n) {
+        ensure(n);
+        int list = owner[n];
+        if (list == NONE)
+            return;
+
+        if (prev[n] == NONE)
+            head[list] = next[n];
+        else
+            next[prev[n]] = next[n];
+        if (next[n] == NONE)
+            tail[list] = prev[n];
+        else
+            prev[next[n]] = prev[n];
+
+        owner[n] = NONE;
+        size[list]--;
+    }
+
+    /**
+     * Remove and return the first node of list, or NONE if it is empty.
+     */
+    public int poll(int list) {
+        int n = head[list];
+        if (n != NONE)
+            remove(n);
+        return n;
+    }
+
+    // the first node of list, or NONE if it is empty. Iterate with first() and next().
+    public int first(int list) {
+        return head[list];
+    }
+
+    // the node after n in its list, or NONE if n is the last one.
+    public int next(int n) {
+        return next[n];
+    }
+
+    // the list that n is in, or NONE.
+    public int listOf(int n) {
+        return n < owner.length ? owner[n] : NONE;
+    }
+
+    public boolean isEmpty(int list) {
+        return size[list] == 0;
+    }
+
+    public int size(int list) {
+        return size[list];
+    }
+
+    // make room for the node id n.
+    private void ensure(int n) {
+        if (n < owner.length)
+            return;
+        int len = Math.max(n + 1, owner.length * 2);
+        next = Arrays.copyOf(next, len);
+        prev = Arrays.copyOf(prev, len);
+        int old = owner.length;
+        owner = Arrays.copyOf(owner, len);
+        Arrays.fill(owner, old, len, NONE);
+    }
+
+}
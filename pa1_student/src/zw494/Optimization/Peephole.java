@@ -0,0 +1,152 @@
+package zw494.Optimization;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import zw494.Assembly.Arg;
+import zw494.Assembly.BinOp;
+import zw494.Assembly.Instr;
+import zw494.Assembly.Mem;
+import zw494.Assembly.Register;
+import zw494.Assembly.BinOp.OpType;
+import zw494.Assembly.Register.regNames;
+
+/**
+ * The peephole pass over the instructions of a function after register allocation, when all registers are
+ * concrete. In one pass it removes the moves of a register to itself, and the spill code that moves a value
+ * between a register and a stack slot that already hold the same value: the reload right after a store to the
+ * same slot, a reload of a value that is still in a register, and a store of a value that the slot still holds.
+ * A reload of a value that is in another register becomes a move between registers.
+ *
+ * What each stack slot holds is only tracked through movq instructions. Every other instruction that is not a
+ * BinOp (labels, jumps, calls, push and pop) forgets everything, and so does every write to %rsp or to memory
+ * that is not a stack slot.
+ */
+public class Peephole {
+
+    // the register that holds the value of each stack slot, by the printed slot
+    private final Map<String, regNames> slots = new HashMap<>();
+
+    private int removed = 0;
+
+    /**
+     * Optimize instrs in place.
+     * @return the number of instructions removed
+     */
+    public static int optimize(List<Instr> instrs) {
+        Peephole p = new Peephole();
+        List<Instr> code = new ArrayList<>(instrs.size());
+
+        for (Instr i : instrs) {
+            if (p.keep(i))
+                code.add(i);
+        }
+
+        instrs.clear();
+        instrs.addAll(code);
+        return p.removed;
+    }
+
+    // step over the instruction i; false if i is removed.
+    private boolean keep(Instr i) {
+
+        if (!(i instanceof BinOp)) {
+            slots.clear();
+            return true;
+        }
+
+        BinOp j = (BinOp) i;
+
+        if (j.op == OpType.cmpq || j.op == OpType.testq)
+            return true;
+
+        String src = slot(j.arg1);
+        String dest = slot(j.arg2);
+        regNames from = reg(j.arg1);
+        regNames to = reg(j.arg2);
+
+        if (j.op == OpType.movq) {
+
+            // movq %r, %r
+            if (from != null && from == to) {
+                removed++;
+                return false;
+            }
+
+            // movq slot, %r
+            if (src != null && to != null && to != regNames.rsp) {
+                regNames r = slots.get(src);
+                if (r == to) {
+                    removed++;
+                    return false;
+                }
+                if (r != null)
+                    j.arg1 = new Register(r);
+                write(to);
+                slots.put(src, to);
+                return true;
+            }
+
+            // movq %r, slot
+            if (from != null && dest != null) {
+                if (slots.get(dest) == from) {
+                    removed++;
+                    return false;
+                }
+                slots.put(dest, from);
+                return true;
+            }
+        }
+
+        if (to != null)
+            write(to);
+        else if (dest != null)
+            slots.remove(dest);
+        else if (j.arg2 instanceof Mem)
+            slots.clear();
+
+        return true;
+    }
+
+    // forget the slots held by r, which is written.
+    private void write(regNames r) {
+        if (r == regNames.rsp) {
+            slots.clear();
+            return;
+        }
+        regNames whole = whole(r);
+        Iterator<regNames> it = slots.values().iterator();
+        while (it.hasNext()) {
+            if (whole(it.next()) == whole)
+                it.remove();
+        }
+    }
+
+    // the 64 bit register that r is part of.
+    private static regNames whole(regNames r) {
+        if (r == regNames.al)
+            return regNames.rax;
+        if (r == regNames.dl)
+            return regNames.rdx;
+        return r;
+    }
+
+    // the concrete register of a, or null if a is not a register.
+    private static regNames reg(Arg a) {
+        return a instanceof Register ? ((Register) a).getResolvedName() : null;
+    }
+
+    // the printed stack slot of a, or null if a is not a stack slot: an offset from %rsp.
+    private static String slot(Arg a) {
+        if (!(a instanceof Mem))
+            return null;
+        Mem m = (Mem) a;
+        if (m.r2 != null || m.r1.getResolvedName() != regNames.rsp)
+            return null;
+        return m.toString();
+    }
+
+}
@@ -1,10 +1,16 @@
 package zw494.Optimization;
 
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
+import zw494.AST.Factory;
 import zw494.Assembly.BinOp;
 import zw494.Assembly.Imm;
 import zw494.Assembly.Instr;
@@ -12,6 +18,7 @@ import zw494.Assembly.Mem;
 import zw494.Assembly.Register;
 import zw494.Assembly.Tile;
 import zw494.Assembly.UnOp;
+import zw494.Assembly.Register.Type;
 import zw494.Assembly.Register.regNames;
 import zw494.Assembly.UnOp.UnOpType;
 import zw494.CFG.ControlFlowGraphAssembly;
@@ -19,11 +26,54 @@ import zw494.CFG.ControlFlowGraphAssembly;
 /**
  * The algorithm of the graph coloring register allocation.
  */
-public class RegisterAlloc {
+public class RegisterAlloc implements RegisterAllocator {
 
-    public int memoryNum = 0; // memory offset.
+    public int memoryNum = 0; // memory offset: the number of stack slots in use.
 
-    private Map<String, Register.regNames> curMap; // current coloring
+    public int livenessIterations = 0; // nodes visited by the live variable analysis, over all rounds.
+
+    AllocationContext context; // the coloring of the last function allocated, by this allocator or by linear scan
+
+    // whether a spill round updates the liveness and the interference graph of the previous round, instead of
+    // allocating the rewritten function again from scratch.
+    public boolean incrementalSpills = true;
+
+    // the number of rounds of coloring that may spill before every register is spilled.
+    public int maxRounds = 8;
+
+    // the names of the registers created by newTemp, and the spill round whose graph first has them
+    private Map<String, Integer> spillTemps = new HashMap<>();
+
+    // whether registers that never live at the same time share a stack slot
+    public boolean shareSlots = true;
+
+    // the spilled registers in every stack slot, by name; null for slots handed out by newMemoryOffset
+    private List<List<String>> slots = new ArrayList<>();
+
+    // the abstract registers that interfered with each spilled register, and the round it was spilled in
+    private Map<String, Set<String>> spillNeighbours = new HashMap<>();
+    private Map<String, Integer> spillRound = new HashMap<>();
+
+    private int spillRounds = 0; // the number of times registers were given slots
+
+    // the number of functions that allocateAll allocates at the same time.
+    public int parallelism = Runtime.getRuntime().availableProcessors();
+
+    // whether LiveRangeSplit splits spilled registers around the calls and divisions they live across, where that
+    // is cheaper than spilling them
+    public boolean splitRanges = true;
+
+    // the names of the registers split by LiveRangeSplit and of the registers it created
+    private Set<String> splitRegs = new HashSet<>();
+
+    // the registers created by splitTemp, and the spill round whose graph first has them
+    private Map<String, Integer> splitTemps = new HashMap<>();
+
+    // whether the instructions go through the Peephole pass after allocation
+    public boolean peephole = true;
+
+    // picks the allocator of each function in allocateFunction and allocateAll; null to always color the graph
+    public AllocPolicy policy = null;
 
     public RegisterAlloc() {
 
@@ -31,9 +81,104 @@ public class RegisterAlloc {
 
     // get a new memory offset.
     public int newMemoryOffset() {
+        slots.add(null);
         return memoryNum++;
     }
 
+    /**
+     * Give stack slots to registers spilled in the same round. Registers share a slot if they never interfere,
+     * so the frame only grows with the number of spilled registers live at the same time. Two registers interfere
+     * if one was a neighbour of the other in the graph of the round it was spilled in. A register that was
+     * created after another was spilled was not in its graph, so it is taken to interfere with it.
+     * @param spilled the spilled registers
+     * @param neighbours the names of the abstract registers that interfere with each spilled register
+     * @return the slot of each spilled register
+     */
+    public int[] spillSlots(List<Register> spilled, List<Set<String>> neighbours) {
+
+        int round = ++spillRounds;
+        int[] result = new int[spilled.size()];
+
+        for (int k = 0; k < result.length; ++k) {
+
+            String name = spilled.get(k).getArgName();
+            spillNeighbours.put(name, neighbours.get(k));
+            spillRound.put(name, round);
+
+            int slot = -1;
+            for (int n = 0; shareSlots && slot < 0 && n < slots.size(); ++n) {
+                if (slots.get(n) != null && !conflicts(name, slots.get(n)))
+                    slot = n;
+            }
+            if (slot < 0) {
+                slot = slots.size();
+                slots.add(new ArrayList<>());
+            }
+
+            slots.get(slot).add(name);
+            result[k] = slot;
+        }
+
+        memoryNum = slots.size();
+        return result;
+    }
+
+    // whether the spilled register r interferes with one of the registers in a slot.
+    private boolean conflicts(String r, List<String> slot) {
+        int born = spillTemps.getOrDefault(r, splitTemps.getOrDefault(r, 1));
+        for (String q : slot) {
+            if (born > spillRound.get(q) || spillNeighbours.get(q).contains(r)
+                    || spillNeighbours.get(r).contains(q))
+                return true;
+        }
+        return false;
+    }
+
+    // get a new abstract register for spill code. The temp counter of Factory is shared by all functions, so
+    // functions allocated on different threads take turns.
+    public Register newTemp() {
+        Register r = freshTemp();
+        // the temps of this round of spill code first appear in the graph of the next round
+        spillTemps.put(r.getArgName(), spillRounds + 1);
+        return r;
+    }
+
+    // get a new abstract register for LiveRangeSplit to split r into. Unlike spill temporaries, it may be spilled.
+    Register splitTemp(Register r) {
+        Register r0 = freshTemp();
+        // the split comes before the spill slots of its round are handed out, so the temps first appear in the
+        // graph of the round after that one
+        splitTemps.put(r0.getArgName(), spillRounds + 2);
+        splitRegs.add(r.getArgName());
+        splitRegs.add(r0.getArgName());
+        return r0;
+    }
+
+    // whether r was split by LiveRangeSplit or created by it.
+    boolean isSplit(Register r) {
+        return r.getArgName() != null && splitRegs.contains(r.getArgName());
+    }
+
+    private static Register freshTemp() {
+        synchronized (Factory.class) {
+            return new Register(Factory.tempFactory());
+        }
+    }
+
+    // give the spill temporaries an infinite spill cost. They only live next to one instruction, so spilling them
+    // again would not free any register.
+    void markSpillTemps(RegisterTable table) {
+        for (int id = RegisterTable.PRECOLORED; id < table.size(); ++id) {
+            if (isSpillTemp(table.get(id)))
+                table.get(id).spill_cost = Double.POSITIVE_INFINITY;
+        }
+    }
+
+    // whether r was created by newTemp for spill code.
+    public boolean isSpillTemp(Register r) {
+        return r.getArgName() != null && spillTemps.containsKey(r.getArgName());
+    }
+
     // get a new piece of memory for the instruction i and its memory offset.
     public Mem getMemory(Instr i, int thisMemNum) {
         Mem m = new Mem(new Register(regNames.rsp), (long) (thisMemNum * 8) + i.stackOffset + 8);
@@ -49,51 +194,234 @@ public class RegisterAlloc {
      */
     public List<Instr> allocate(List<Instr> instrs) {
 
-        replaceMemStackOffset(instrs);
+        return allocateWithStats(null, instrs).instrs;
+
+    }
+
+    /**
+     * Allocate the registers of every function of a compilation unit. The functions are independent, so they are
+     * allocated concurrently on a pool of parallelism threads, each by a new RegisterAlloc with the settings of
+     * this one.
+     * @param functions the instructions of every function, by function name
+     * @return the result of every function, in the iteration order of functions
+     */
+    public Map<String, AllocResult> allocateAll(Map<String, List<Instr>> functions) {
+
+        Map<String, AllocResult> results = new LinkedHashMap<>();
+
+        if (parallelism <= 1) {
+            for (Map.Entry<String, List<Instr>> f : functions.entrySet())
+                results.put(f.getKey(), forFunction().allocateFunction(f.getKey(), f.getValue()));
+            return results;
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+        try {
+            List<ForkJoinTask<AllocResult>> tasks = new ArrayList<>();
+
+            for (Map.Entry<String, List<Instr>> f : functions.entrySet()) {
+                RegisterAlloc ra = forFunction();
+                tasks.add(pool.submit(() -> ra.allocateFunction(f.getKey(), f.getValue())));
+            }
+
+            int k = 0;
+            for (String name : functions.keySet())
+                results.put(name, tasks.get(k++).join());
 
-        ControlFlowGraphAssembly cfg = new ControlFlowGraphAssembly();
+        } finally {
+            pool.shutdown();
+        }
+
+        return results;
+    }
+
+    // a new allocator with the settings of this one, for one function.
+    private RegisterAlloc forFunction() {
+        RegisterAlloc ra = new RegisterAlloc();
+        ra.incrementalSpills = incrementalSpills;
+        ra.maxRounds = maxRounds;
+        ra.shareSlots = shareSlots;
+        ra.splitRanges = splitRanges;
+        ra.peephole = peephole;
+        ra.policy = policy;
+        return ra;
+    }
+
+    /**
+     * Allocate the registers of one function with the allocator that policy chooses for it: iterated coalescing
+     * by this RegisterAlloc, or linear scan. The time taken is charged to the budget of the policy.
+     * @param function the name of the function, or null
+     * @param instrs the set of instructions to allocate color. Most registers in this set is abstract.
+     * @return the result of the allocation, with the decision of the policy
+     */
+    public AllocResult allocateFunction(String function, List<Instr> instrs) {
+
+        if (policy == null)
+            return allocateWithStats(function, instrs);
+
+        long start = System.nanoTime();
+
+        AllocPolicy.Decision decision = policy.choose(function, instrs);
+
+        AllocResult result;
+        if (decision.tier == AllocPolicy.Tier.linearScan)
+            result = new LinearScanAlloc(this).allocateWithStats(function, instrs);
+        else
+            result = allocateWithStats(function, instrs);
+
+        policy.charge(System.nanoTime() - start);
+
+        result.decision = decision;
+        return result;
+    }
+
+    /**
+     * Allocate colors for the set instrs, and report every round of coloring. A round that spills rewrites the
+     * program and starts another round. With splitRanges, the registers that are cheaper to split around calls and
+     * divisions than to spill are split instead, the others are spilled, and the next round starts from scratch.
+     * After maxRounds rounds that all spilled, every register is spilled, which always leaves a colorable program.
+     * @param function the name of the function, or null
+     * @param instrs the set of instructions to allocate color. Most registers in this set is abstract.
+     * @return The instructions, where all registers are concrete, their coloring, and the statistics of every
+     *         round.
+     */
+    @Override
+    public AllocResult allocateWithStats(String function, List<Instr> instrs) {
+
+        AllocResult result = new AllocResult(instrs);
+
+        LiveVarsAnal lva = null;
+        IntfGraphTest graph = null;
+
+        // the spills of the last round
+        int[] spilled = null;
+        Set<BasicBlock> patched = null;
+
+        int limit = Math.max(maxRounds, 1);
+
+        for (int round = 1;; ++round) {
+
+            long start = System.nanoTime();
+
+            if (lva == null || !incrementalSpills) {
+
+                replaceMemStackOffset(instrs);
+
+                ControlFlowGraphAssembly cfg = new ControlFlowGraphAssembly();
 
-        cfg.createGraph(instrs);
+                cfg.createGraph(instrs);
 
-        LiveVarsAnal lva = new LiveVarsAnal(cfg, instrs);
+                RegisterTable table = new RegisterTable();
 
-        lva.worklistAlgoBackward();
+                lva = new LiveVarsAnal(cfg, instrs, table);
 
-        Set<Register> checkSet = new HashSet<>();
+                lva.worklistAlgoBackward();
+                livenessIterations += lva.iterations();
 
-        IntfGraphTest graph = new IntfGraphTest(lva, instrs);
+                graph = new IntfGraphTest(lva, instrs);
 
-        graph.build(lva, instrs);
+                graph.build(lva, instrs);
 
-        for (Register r : graph.adjList.keySet()) {
-            Set<Register> val = graph.adjList.get(r);
+            } else {
 
+                Set<BasicBlock> changed = lva.respill(spilled, patched);
+                livenessIterations += lva.iterations();
+
+                graph.respill(lva, instrs, spilled, changed);
+
+            }
+
+            int nodes = graph.nodes;
+            int edges = graph.edges;
+
+            color(lva, graph, instrs);
+
+            if (graph.isEmpty(Type.spilled)) {
+                result.rounds.add(new AllocResult.Round(0, nodes, edges, System.nanoTime() - start));
+                break;
+            }
+
+            // not reached for any instructions that can be allocated at all: after spillAll, the only abstract
+            // registers are spill temporaries, and each lives from its load to its instruction or from its
+            // instruction to its store. Its neighbours are the other temporaries of that instruction and the concrete
+            // registers live there, which all need a register at the same time. With K or more of them the
+            // instruction needs more registers than there are, and no spilling can help; with fewer, simplify
+            // removes every temporary and select colors it, so the round after spillAll always colors.
+            if (round > limit)
+                throw new Error("An instruction needs more registers than there are");
+
+            if (round == limit) {
+                graph.spillAll(this);
+                result.spilledAll = true;
+            }
+
+            spilled = graph.spilledIds();
+
+            // split some of the spilled registers instead, and spill the others
+            int[] split = splitRanges && round < limit ? LiveRangeSplit.candidates(this, lva, spilled) : new int[0];
+            if (split.length > 0) {
+                result.splitCopies += LiveRangeSplit.split(this, lva, instrs, split);
+                spilled = without(spilled, split);
+            }
+
+            if (spilled.length > 0)
+                patched = graph.rewriteProgram(this, lva, instrs, spilled);
+
+            result.rounds.add(new AllocResult.Round(spilled.length, nodes, edges, System.nanoTime() - start));
+
+            // the split registers no longer live across the instructions they were split around: color the split
+            // program from scratch
+            if (split.length > 0)
+                lva = null;
         }
 
+        context = new AllocationContext(function, graph.colorMap);
+        context.rewrite(instrs);
+        result.selfMoves = AllocationContext.removeSelfMoves(instrs);
+        if (peephole)
+            result.peepholeRemoved = Peephole.optimize(instrs);
+        result.context = context;
+        result.slots = memoryNum;
+
+        return result;
+    }
+
+    // the ids of a that are not in b.
+    private static int[] without(int[] a, int[] b) {
+        IntList l = new IntList();
+        for (int x : a) {
+            if (!LiveVarsAnal.contains(b, x))
+                l.add(x);
+        }
+        int[] result = new int[l.size()];
+        for (int k = 0; k < result.length; ++k)
+            result[k] = l.get(k);
+        return result;
+    }
+
+    // simplify, coalesce, freeze and spill until the graph is empty, then assign the colors.
+    private void color(LiveVarsAnal lva, IntfGraphTest graph, List<Instr> instrs) {
+
+        lva.countUses();
+        markSpillTemps(lva.table);
+
         graph.makeWorkList();
 
         while (isSimplify(graph)) {
-            if (!graph.simplifyWorklist.isEmpty())
+            if (!graph.isEmpty(Type.simplify))
                 graph.simplify(lva, instrs);
-            else if (!graph.worklistMoves.isEmpty())
+            else if (!graph.isEmpty(IntfMove.Category.worklist))
                 graph.coalesce();
-            else if (!graph.freezeWorklist.isEmpty()) {
+            else if (!graph.isEmpty(Type.freeze)) {
                 graph.freeze();
-            } else if (!graph.spillWorklist.isEmpty()) {
+            } else if (!graph.isEmpty(Type.spilling)) {
                 graph.selectSpill();
             }
         }
 
         graph.assignColors();
 
-        if (!graph.spilledNodes.isEmpty()) {
-            graph.rewriteProgram(this, lva, instrs);
-            return allocate(instrs);
-        }
-
-        curMap = graph.colorMap;
-
-        return instrs;
     }
 
     // boolean isSimplify(IntfGraph g) {
@@ -104,13 +432,18 @@ public class RegisterAlloc {
 
     // check if the interference graph is simplified.
     boolean isSimplify(IntfGraphTest g) {
-        return !g.simplifyWorklist.isEmpty() || !g.worklistMoves.isEmpty() || !g.freezeWorklist.isEmpty()
-                || !g.spillWorklist.isEmpty();
+        return !g.isEmpty(Type.simplify) || !g.isEmpty(IntfMove.Category.worklist) || !g.isEmpty(Type.freeze)
+                || !g.isEmpty(Type.spilling);
+    }
+
+    // the coloring of the last function allocated.
+    public AllocationContext context() {
+        return context;
     }
 
     // the current coloring map.
     public Map<String, Register.regNames> curMap() {
-        return curMap;
+        return context == null ? null : context.colorMap();
     }
 
     /**
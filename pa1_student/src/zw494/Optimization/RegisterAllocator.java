@@ -0,0 +1,23 @@
+package zw494.Optimization;
+
+import java.util.List;
+
+import zw494.Assembly.Instr;
+
+/**
+ * A register allocator for the instructions of one function. RegisterAlloc colors the interference graph, and
+ * LinearScanAlloc scans live intervals; both spill to the stack slots addressed by RegisterAlloc.getMemory.
+ */
+public interface RegisterAllocator {
+
+    /**
+     * Allocate the registers of one function.
+     * @param function the name of the function, or null
+     * @param instrs the instructions of the function. Most registers in this set are abstract; they are rewritten
+     *               in place.
+     * @return The instructions, where all registers are concrete, their coloring, and the statistics of every
+     *         round.
+     */
+    AllocResult allocateWithStats(String function, List<Instr> instrs);
+
+}
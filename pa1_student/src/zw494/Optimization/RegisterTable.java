@@ -0,0 +1,100 @@
+package zw494.Optimization;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import zw494.Assembly.Register;
+import zw494.Assembly.Register.regNames;
+
+/**
+ * The interning table of registers for the allocation of one function. Every register gets a dense integer id
+ * the first time it is seen, so that the analyses can index arrays instead of hashing register objects.
+ *
+ * The concrete registers take the ids 0 .. PRECOLORED - 1 in the order of regNames, and the abstract registers
+ * are numbered from PRECOLORED on in the order they are met.
+ */
+public class RegisterTable {
+
+    // number of ids reserved for the concrete registers
+    public static final int PRECOLORED = regNames.values().length;
+
+    // abstract register name -> id
+    private final Map<String, Integer> abstractIds;
+
+    // id -> the canonical register object of that id
+    private Register[] regs;
+    private int size;
+
+    public RegisterTable() {
+        abstractIds = new HashMap<>();
+        regs = new Register[PRECOLORED * 4];
+        for (regNames name : regNames.values()) {
+            regs[name.ordinal()] = new Register(name);
+        }
+        size = PRECOLORED;
+    }
+
+    /**
+     * Get the id of the register r, assigning a new one if r has not been seen yet.
+     */
+    public int id(Register r) {
+        regNames name = concreteName(r);
+        if (name != null)
+            return name.ordinal();
+
+        Integer id = abstractIds.get(r.getArgName());
+        if (id != null)
+            return id;
+
+        if (size == regs.length)
+            regs = Arrays.copyOf(regs, size * 2);
+        regs[size] = r;
+        abstractIds.put(r.getArgName(), size);
+        return size++;
+    }
+
+    /**
+     * Get the id of the register r, or -1 if r has not been seen yet.
+     */
+    public int lookup(Register r) {
+        regNames name = concreteName(r);
+        if (name != null)
+            return name.ordinal();
+
+        Integer id = abstractIds.get(r.getArgName());
+        return id == null ? -1 : id;
+    }
+
+    /**
+     * Get the canonical register object of r. All occurrences of the same register share this object.
+     */
+    public Register intern(Register r) {
+        int id = id(r);
+        return regs[id];
+    }
+
+    // the canonical register object of the given id.
+    public Register get(int id) {
+        return regs[id];
+    }
+
+    // the number of ids handed out so far, including the concrete registers.
+    public int size() {
+        return size;
+    }
+
+    // whether the id belongs to a concrete register.
+    public static boolean isPrecolored(int id) {
+        return id < PRECOLORED;
+    }
+
+    /**
+     * The concrete register that r stands for, or null if r is abstract. _ARG and _RET registers are resolved to
+     * their calling convention registers, the same way Register.toString() prints them.
+     */
+    static regNames concreteName(Register r) {
+        return r.getResolvedName();
+    }
+
+}
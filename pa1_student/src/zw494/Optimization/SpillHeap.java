@@ -0,0 +1,144 @@
+package zw494.Optimization;
+
+import java.util.Arrays;
+
+/**
+ * An indexed binary min-heap of node ids keyed by spill cost. Every node knows its position in the heap, so the key
+ * of a node can be raised or lowered, and the node removed, in O(log n). Equal keys are ordered by id so that the
+ * choice of spill is deterministic.
+ */
+public class SpillHeap {
+
+    private int[] heap; // node ids in heap order
+    private int size;
+
+    // position of every node in heap (-1 if it is not in the heap), and its key
+    private int[] pos;
+    private double[] key;
+
+    /**
+     * @param nodes the number of node ids expected. Larger ids are accepted as well.
+     */
+    public SpillHeap(int nodes) {
+        heap = new int[Math.max(nodes, 1)];
+        pos = new int[heap.length];
+        key = new double[heap.length];
+        Arrays.fill(pos, -1);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean contains(int n) {
+        return n < pos.length && pos[n] >= 0;
+    }
+
+    /**
+     * The node with the lowest key, or -1 if the heap is empty.
+     */
+    public int peek() {
+        return size == 0 ? -1 : heap[0];
+    }
+
+    /**
+     * Add the node n with key k, or change its key if it is already in the heap.
+     */
+    public void insert(int n, double k) {
+        if (contains(n)) {
+            update(n, k);
+            return;
+        }
+        ensure(n);
+        if (size == heap.length)
+            heap = Arrays.copyOf(heap, size * 2);
+        key[n] = k;
+        heap[size] = n;
+        pos[n] = size;
+        siftUp(size++);
+    }
+
+    /**
+     * Change the key of the node n, moving it up or down as needed. Does nothing if n is not in the heap.
+     */
+    public void update(int n, double k) {
+        if (!contains(n))
+            return;
+        double old = key[n];
+        key[n] = k;
+        if (k < old)
+            siftUp(pos[n]);
+        else if (k > old)
+            siftDown(pos[n]);
+    }
+
+    /**
+     * Take the node n out of the heap, if it is there.
+     */
+    public void remove(int n) {
+        if (!contains(n))
+            return;
+        int p = pos[n];
+        pos[n] = -1;
+        if (p == --size)
+            return;
+        int last = heap[size];
+        heap[p] = last;
+        pos[last] = p;
+        siftDown(p);
+        siftUp(pos[last]);
+    }
+
+    // whether the node a should be above the node b.
+    private boolean less(int a, int b) {
+        return key[a] < key[b] || (key[a] == key[b] && a < b);
+    }
+
+    private void siftUp(int p) {
+        int n = heap[p];
+        while (p > 0) {
+            int parent = (p - 1) >>> 1;
+            if (!less(n, heap[parent]))
+                break;
+            heap[p] = heap[parent];
+            pos[heap[p]] = p;
+            p = parent;
+        }
+        heap[p] = n;
+        pos[n] = p;
+    }
+
+    private void siftDown(int p) {
+        int n = heap[p];
+        while (true) {
+            int child = 2 * p + 1;
+            if (child >= size)
+                break;
+            if (child + 1 < size && less(heap[child + 1], heap[child]))
+                child++;
+            if (!less(heap[child], n))
+                break;
+            heap[p] = heap[child];
+            pos[heap[p]] = p;
+            p = child;
+        }
+        heap[p] = n;
+        pos[n] = p;
+    }
+
+    // make room for the node id n.
+    private void ensure(int n) {
+        if (n < pos.length)
+            return;
+        int len = Math.max(n + 1, pos.length * 2);
+        int old = pos.length;
+        pos = Arrays.copyOf(pos, len);
+        key = Arrays.copyOf(key, len);
+        Arrays.fill(pos, old, len, -1);
+    }
+
+}
@@ -0,0 +1,99 @@
+package zw494.Optimization;
+
+import java.util.AbstractQueue;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.function.ToIntFunction;
+
+/**
+ * The worklist of a data flow analysis. It is a FIFO queue that holds each node at most once: adding a node that
+ * is already queued does nothing. Membership is kept in a bitmap indexed by the dense id of each node, which the
+ * analysis gives (the index of a BasicBlock for live variable analysis).
+ */
+public class Worklist<N> extends AbstractQueue<N> {
+
+    private final ToIntFunction<N> id; // node -> its bit in queued
+    private boolean[] queued;
+    private final ArrayDeque<N> queue;
+
+    /**
+     * @param nodes the nodes of the graph
+     * @param id    the dense id of each node, from 0; ids beyond the number of nodes grow the bitmap
+     */
+    public Worklist(List<N> nodes, ToIntFunction<N> id) {
+        this.id = id;
+        queued = new boolean[Math.max(nodes.size(), 1)];
+        queue = new ArrayDeque<>();
+    }
+
+    /**
+     * The index of the node n in the bitmap, which grows to hold it.
+     */
+    int indexOf(N n) {
+        int k = id.applyAsInt(n);
+        if (k >= queued.length)
+            queued = Arrays.copyOf(queued, Math.max(k + 1, queued.length * 2));
+        return k;
+    }
+
+    // the number of node ids the bitmap holds.
+    int indexSize() {
+        return queued.length;
+    }
+
+    /**
+     * Add the node n unless it is already queued.
+     *
+     * @return whether n was added
+     */
+    @Override
+    public boolean offer(N n) {
+        int k = indexOf(n);
+        if (queued[k])
+            return false;
+        queued[k] = true;
+        queue.add(n);
+        return true;
+    }
+
+    // same as offer; returns false instead of throwing when n is already queued.
+    @Override
+    public boolean add(N n) {
+        return offer(n);
+    }
+
+    @Override
+    public N poll() {
+        N n = queue.poll();
+        if (n != null)
+            queued[id.applyAsInt(n)] = false;
+        return n;
+    }
+
+    @Override
+    public N peek() {
+        return queue.peek();
+    }
+
+    // o must be a node of the graph.
+    @Override
+    @SuppressWarnings("unchecked")
+    public boolean contains(Object o) {
+        int k = id.applyAsInt((N) o);
+        return k < queued.length && queued[k];
+    }
+
+    @Override
+    public int size() {
+        return queue.size();
+    }
+
+    @Override
+    public Iterator<N> iterator() {
+        return Collections.unmodifiableCollection(queue).iterator();
+    }
+
+}